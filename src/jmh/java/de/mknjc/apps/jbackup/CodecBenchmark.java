@@ -0,0 +1,110 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Speed of the bundle codecs on one bundle payload of 1 MiB, so the scores are MiB/s of uncompressed data.
+ *
+ * The ratio of each codec is printed at the setup. Without a file the sample is a mix of text like data,
+ * random bytes and zeros, a real sample is given with e.g.
+ * <pre>java -jar target/benchmarks.jar CodecBenchmark -p file=/var/tmp/disk.img</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	private static final int SIZE = 1 << 20;
+
+	@Param({ "lzma", "lzo1x_1", "lz4" })
+	public String codec;
+
+	@Param({ "" })
+	public String file;
+
+	@Param({ "6" })
+	public int level;
+
+	private Codec c;
+	private byte[] data;
+	private byte[] compressed;
+	private final byte[] restored = new byte[CodecBenchmark.SIZE];
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(CodecBenchmark.SIZE * 2);
+
+	@Setup
+	public void compressSample() throws IOException {
+		this.c = Codec.forName(this.codec);
+		this.data = this.file.isEmpty() ? CodecBenchmark.sample() : Arrays.copyOf(Files.readAllBytes(Paths.get(this.file)), CodecBenchmark.SIZE);
+
+		this.compressed = this.compress().toByteArray();
+		System.out.printf("%n%s ratio %.3f%n", this.codec, (double)this.compressed.length / this.data.length);
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream compress() throws IOException {
+		this.out.reset();
+		this.c.compress(this.data, 0, this.data.length, this.level, this.out);
+		return this.out;
+	}
+
+	@Benchmark
+	public byte[] decompress() throws IOException {
+		this.c.decompress(new ByteArrayInputStream(this.compressed), this.restored, 0, this.restored.length);
+		return this.restored;
+	}
+
+	private static byte[] sample() {
+		final Random rand = new Random(42);
+		final String[] words = new String[4096];
+		for (int i = 0; i < words.length; i++) {
+			final char[] word = new char[2 + rand.nextInt(8)];
+			for (int j = 0; j < word.length; j++) {
+				word[j] = (char)('a' + rand.nextInt(26));
+			}
+			words[i] = new String(word);
+		}
+
+		final byte[] sample = new byte[CodecBenchmark.SIZE];
+		int pos = 0;
+		while(pos < sample.length) {
+			final int length = Math.min(sample.length - pos, 4096 + rand.nextInt(1 << 14));
+			final int kind = rand.nextInt(8);
+			if(kind < 5) {
+				// frequent words are more likely, like in text
+				for (int i = pos; i < pos + length; ) {
+					final byte[] word = (words[(int)(words.length * Math.pow(rand.nextDouble(), 3))] + ' ').getBytes();
+					final int count = Math.min(word.length, pos + length - i);
+					System.arraycopy(word, 0, sample, i, count);
+					i += count;
+				}
+			} else if(kind < 7) {
+				final byte[] random = new byte[length];
+				rand.nextBytes(random);
+				System.arraycopy(random, 0, sample, pos, length);
+			}
+			pos += length;
+		}
+		return sample;
+	}
+}
@@ -0,0 +1,76 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention benchmark for the index caches shared by several chunking threads.
+ *
+ * Every operation is a rolling hash probe, 1/16 of them also insert a chunk of a fixed pool, so later inserts
+ * race on chunks which are already stored. Run it with increasing thread counts to see the scaling, e.g.
+ * <pre>java -jar target/benchmarks.jar ConcurrentIndexCacheBenchmark -t 1; ... -t 8</pre>
+ * The synchronized variant is the single threaded table behind one lock, as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentIndexCacheBenchmark {
+	private static final int POOL_SIZE = 1 << 22;
+
+	@Param({ "concurrent", "synchronized" })
+	public String cache;
+
+	private ChunkID[] pool;
+	private IndexCache index;
+
+	@Setup(Level.Trial)
+	public void createPool() {
+		final Random rand = new Random(42);
+		this.pool = new ChunkID[ConcurrentIndexCacheBenchmark.POOL_SIZE];
+		for (int i = 0; i < this.pool.length; i++) {
+			this.pool[i] = new ChunkID(rand.nextLong(), 4096, rand.nextLong(), rand.nextLong(), null);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void fillCache() {
+		this.index = this.cache.equals("concurrent") ? new ConcurrentIndexCache(0, new BundleRegistry()) : new SynchronizedIndexCache(new ByteBufferIndexCache(0, new BundleRegistry()));
+
+		// start half full, so the table still has to grow during the run
+		for (int i = 0; i < this.pool.length / 2; i++) {
+			this.index.addChunk(this.pool[i]);
+		}
+	}
+
+	@Benchmark
+	public Object probeAndInsert() {
+		final ThreadLocalRandom rand = ThreadLocalRandom.current();
+		final ChunkID id = this.pool[rand.nextInt(this.pool.length)];
+
+		if((rand.nextInt() & 15) == 0)
+			return this.index.addChunkIfAbsent(id);
+
+		// like the chunking loop, most probes miss
+		final long rollingHash = (rand.nextInt() & 3) == 0 ? id.getRollingHash() : rand.nextLong();
+		if(this.index.hasChunk(rollingHash))
+			return this.index.hasChunkWithHash(rollingHash, id.getHash0(), id.getHash1());
+		return null;
+	}
+}
@@ -0,0 +1,106 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the per byte rolling hash loop of the chunking with the bulk methods, the scores are bytes/ns.
+ *
+ * The window is rotated over a buffer of four windows, the per byte variant wraps around like the old ring
+ * buffer. The filter accepts one in 64K digests, about as rare as a hit in the index.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RollingHashBenchmark {
+	private static final int WINDOW = 1 << 16;
+	private static final int SIZE = RollingHashBenchmark.WINDOW * 4;
+
+	private final byte[] buff = new byte[RollingHashBenchmark.SIZE];
+	private final int[] positions = new int[64];
+	private final LongPredicate filter = digest -> (digest & 0xffff) == 0x1234;
+
+	@Setup
+	public void fill() {
+		new Random(42).nextBytes(this.buff);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RollingHashBenchmark.SIZE)
+	public int rotatePerByte() {
+		final RollingHash hash = new RollingHash();
+		int head = 0;
+		int tail = 0;
+		for (; head < RollingHashBenchmark.WINDOW; head++) {
+			hash.rollIn(this.buff[head]);
+		}
+
+		int found = 0;
+		for (int i = 0; i < RollingHashBenchmark.SIZE; i++) {
+			hash.rotate(this.buff[head++], this.buff[tail++]);
+			if(head == this.buff.length)
+				head = 0;
+			if(tail == this.buff.length)
+				tail = 0;
+			if(this.filter.test(hash.digest()))
+				found++;
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RollingHashBenchmark.SIZE)
+	public int rotateBulk() {
+		final RollingHash hash = new RollingHash();
+		hash.rollIn(this.buff, 0, RollingHashBenchmark.WINDOW);
+
+		int found = 0;
+		int from = RollingHashBenchmark.WINDOW;
+		while(from < RollingHashBenchmark.SIZE) {
+			final int count = hash.rotate(this.buff, from, RollingHashBenchmark.SIZE, RollingHashBenchmark.WINDOW, this.filter, this.positions);
+			found += count;
+			from = count == this.positions.length ? this.positions[count - 1] : RollingHashBenchmark.SIZE;
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RollingHashBenchmark.SIZE)
+	public long digestPerByte() {
+		long sum = 0;
+		for (int offset = 0; offset < RollingHashBenchmark.SIZE; offset += RollingHashBenchmark.WINDOW) {
+			final RollingHash hash = new RollingHash();
+			for (int i = offset; i < offset + RollingHashBenchmark.WINDOW; i++) {
+				hash.rollIn(this.buff[i]);
+			}
+			sum += hash.digest();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RollingHashBenchmark.SIZE)
+	public long digestBulk() {
+		long sum = 0;
+		for (int offset = 0; offset < RollingHashBenchmark.SIZE; offset += RollingHashBenchmark.WINDOW) {
+			sum += RollingHash.digest(this.buff, offset, RollingHashBenchmark.WINDOW);
+		}
+		return sum;
+	}
+}
@@ -2,29 +2,85 @@ package de.mknjc.apps.jbackup;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 import com.google.protobuf.ByteString;
-import com.google.protobuf.ByteString.Output;
 
 import de.mknjc.apps.zbackup.proto.Zbackup.BackupInstruction;
 
+/**
+ * Splits the input into chunks and stores them.
+ *
+ * The backup runs as a pipeline: the input is read and hashed with SHA-256 by the {@link InputPipeline}, the
+ * calling thread searches the chunk boundaries. The SHA-1 of the chunks is computed in batches on a thread pool
+ * and a store thread saves them in the input order. The rolling match only needs the rolling hash to decide on a
+ * match, the SHA-1 check of the match is left to the store thread.
+ *
+ * A seekable input is cut in parallel with a chunker: the input is mapped and split into segments which are
+ * cut on a fork join pool, each as if a chunk started at the segment start. The chunks are hashed and stored
+ * straight from the mapping. The chunks of a segment only depend on
+ * where the first one starts, so following the real chunks over the seam until they meet one of the segment
+ * gives the same chunks as cutting the input in one piece.
+ *
+ * Without a chunker the rolling match runs over the mapping of a seekable input instead of the buffer, its
+ * chunks are hashed and stored straight from the mapping and the SHA-256 of the input is computed behind it on
+ * another thread.
+ *
+ * Runs of one repeated byte are cut into fill chunks by {@link FillChunks}, their hashes are only computed once.
+ */
 public class BackupCreator implements Runnable {
 	public static final int MIN_CHUNK_SIZE = 1 << 8;
+	/** candidate positions collected per scan */
+	private static final int CANDIDATES = 64;
+	private static final int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+	/** batches waiting for the store thread */
+	private static final int HASH_QUEUE = BackupCreator.HASH_THREADS * 2;
+	private static final int SEGMENT_SIZE = 1 << 24;
+	/** a seekable input is mapped in windows of this size */
+	private static final int MAPPING_SIZE = 1 << 30;
 	public final int MAX_CHUNK_SIZE;
 
 
-	private final InputStream in;
+	/** null for a seekable input */
+	private final InputPipeline in;
+	private final FileChannel channel;
+	private long channelLength;
+	private byte[] channelSha256;
 	private final Store cs;
-
-	private final MessageDigest chunkHash;
-	private final MessageDigest totalSHA;
-
-	private long inputLength = 0;
-
-	private final List<BackupInstruction> instructions = new ArrayList<>();
+	/** null for the rolling match, with a chunker it is the fills */
+	private final Chunker chunker;
+	private final FillChunks fills;
+
+	/** between the strong hash and the store stage */
+	private StageQueue<Future<ChunkBatch>> hashedChunks;
+	private long submittedBatches;
+	/** written by the store stage */
+	private volatile long storedBatches;
+
+	/** the instructions are written delimited as they are produced */
+	private final OutputStream instructions;
+	/**
+	 * The instruction which is coalesced: adjacent bytes are merged and a chunk which follows itself is counted
+	 * in its repeat field if enabled, zeroed regions would give one instruction per chunk otherwise.
+	 */
+	private ByteString pendingChunk;
+	private int pendingRepeat;
+	/** zbackup ignores the repeat field, so it is only used if the store allows it */
+	private final boolean chunkRepeat;
+	private final ByteString.Output pendingBytes = ByteString.newOutput();
 
 
 	RollingHash hash = new RollingHash();
@@ -37,93 +93,482 @@ public class BackupCreator implements Runnable {
 
 	long nextChunkHash = 0;
 
+	/** the window of a seekable input the rolling match runs over, null for a stream */
+	private ByteBuffer mapping;
+	/** the channel position of the mapping */
+	private long mappingStart;
+	private long channelEnd;
+	/** computes the SHA-256 of the mapped input one mapping after the other */
+	private ExecutorService inputHashPool;
+	private MessageDigest inputSha;
+	private Future<?> inputHashed;
+	private long inputHashedEnd;
+
+	/** the rolling match copies its chunks into this batch, with a mapping it refers to it */
+	private ChunkBatch rollingBatch;
+	private BufferPool rollingBuffers;
+	private ExecutorService rollingHashPool;
+	private final PendingHashes pending = new PendingHashes();
+
 
 	// stats
 	int falsePositives;
 	int foundChunks;
 	int emittedShortChunks;
+	int seamChunks;
+	int repeatedChunks;
+	int fillChunks;
+	long instructionCount;
+	/** the rolling hashes looked up in the store, reported to it at the end */
+	long rollingLookups;
+	long rollingMatches;
 
 
-	public BackupCreator(final InputStream input, final Store cs) {
-		this.in = input;
+	public BackupCreator(final InputStream input, final Store cs, final OutputStream instructions) {
+		this(new InputPipeline(input), null, cs, instructions);
+	}
+
+	/**
+	 * Backup of a seekable input starting at its position, the input is mapped. With a chunker it is cut in parallel.
+	 */
+	public BackupCreator(final FileChannel input, final Store cs, final OutputStream instructions) {
+		this(null, input, cs, instructions);
+	}
+
+	private BackupCreator(final InputPipeline in, final FileChannel channel, final Store cs, final OutputStream instructions) {
+		this.in = in;
+		this.channel = channel;
 		this.cs = cs;
+		this.instructions = instructions;
 		this.MAX_CHUNK_SIZE = this.cs.getMaxChunkSize();
+		this.chunkRepeat = this.cs.isChunkRepeatEnabled();
+		final Chunker chunker = this.cs.newChunker();
+		this.fills = new FillChunks(chunker, this.MAX_CHUNK_SIZE);
+		this.chunker = chunker == null ? null : this.fills;
 		buff =  new byte[this.MAX_CHUNK_SIZE*4];
-		try {
-			this.chunkHash = MessageDigest.getInstance("SHA-1");
-			this.totalSHA = MessageDigest.getInstance("SHA-256");
-		} catch (final NoSuchAlgorithmException e1) {
-			e1.printStackTrace();
-			throw new Error("SHA-1 and SHA-256 is required.", e1);
-		}
 	}
 
 
 
+	@Override
+	public void run() {
+
+		try {
+			if(this.chunker == null)
+				this.runRolling();
+			else if(this.in == null)
+				this.runParallel();
+			else
+				this.runChunker();
+			this.flushInstruction();
+			this.cs.countLookups(this.rollingLookups, this.rollingMatches);
+		} catch (final IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
 	/*
 
 	[][][][][][][][][][][][][][][][]
 	  ^           ^           ^
 	  cT          hT          hH
 
-	  hH          cT          hT
+	 The buffer is used linear, the pending chunk and the window are moved to the front before it runs full.
 
-	  hT          hH          cT
+	 Only the rolling hash is computed here. The chunks are copied into batches which are hashed on the pool and
+	 stored in order like the chunks of a chunker. A window which rolling hash is known counts as a match, the
+	 store stage checks it with the SHA-1 and stores it as a new chunk if it was a false positive.
+	 */
+	private void runRolling() throws IOException {
+		if(this.channel == null)
+			this.rollingBuffers = new BufferPool(buff.length, BackupCreator.HASH_QUEUE + 2);
+		else
+			this.startInputHash();
+		this.rollingHashPool = Executors.newFixedThreadPool(BackupCreator.HASH_THREADS);
+		final RuntimeException[] storeFailure = new RuntimeException[1];
+		final Thread storer = this.startStoreStage(this.rollingBuffers, storeFailure);
+		// a mapped input gets its first batch with the first mapping
+		if(this.channel == null)
+			this.startRollingBatch();
 
+		try {
+			this.rollingMatch();
+			this.submitRollingBatch();
+		} finally {
+			this.finishStoreStage(storer, this.rollingHashPool);
+			if(this.inputHashPool != null)
+				this.inputHashPool.shutdown();
+		}
+
+		if(storeFailure[0] != null)
+			throw storeFailure[0];
+		if(this.channel != null) {
+			BackupCreator.get(this.inputHashed);
+			this.channelSha256 = this.inputSha.digest();
+		}
+	}
+
+	private void startInputHash() throws IOException {
+		try {
+			this.inputSha = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 is required.", e);
+		}
+		this.inputHashPool = Executors.newSingleThreadExecutor();
+		this.mappingStart = this.channel.position();
+		this.inputHashedEnd = this.mappingStart;
+		this.channelEnd = this.channel.size();
+		this.channelLength = this.channelEnd - this.mappingStart;
+	}
+
+	private void rollingMatch() throws IOException {
+		final int[] candidates = new int[BackupCreator.CANDIDATES];
+		int end = 0;
+		boolean eof = false;
+
+		while(true) {
+			if(!eof && end - hashHead < this.MAX_CHUNK_SIZE) {
+				end = this.compactAndFill(chunkTail, end);
+				eof = this.mapping != null ? this.mappingStart + end == this.channelEnd : end < buff.length;
+			}
+			if(hashHead == end)
+				break;
+
+			if(hashLength == 0) {
+				// a run of one byte is stored as fill chunks without hashing
+				final FillChunks.Fill fill = this.mapping != null ? this.fills.find(this.mapping, hashHead, end - hashHead) : this.fills.find(buff, hashHead, end - hashHead);
+				if(fill != null) {
+					this.emitChunk(hashHead, fill.length, fill.rollingHash, false);
+					hashHead += fill.length;
+					chunkTail = hashTail = hashHead;
+					continue;
+				}
+			}
+
+			if(hashLength < this.MAX_CHUNK_SIZE) {
+				final int to = Math.min(end, hashTail + this.MAX_CHUNK_SIZE);
+				this.rollIn(hashHead, to);
+				hashHead = to;
+				hashLength = hashHead - hashTail;
+
+				if(hashLength == this.MAX_CHUNK_SIZE) {
+					nextChunkHash = hash.digest();
+					checkMatch(hash.digest());
+				}
+				continue;
+			}
+
+			// scan up to the next full chunk at most
+			final int to = Math.min(end, hashHead + this.MAX_CHUNK_SIZE - chunkLength);
+			final int count = this.mapping != null
+					? hash.rotate(this.mapping, hashHead, to, this.MAX_CHUNK_SIZE, this::isKnown, candidates)
+					: hash.rotate(buff, hashHead, to, this.MAX_CHUNK_SIZE, this::isKnown, candidates);
+			final int scanned = count == candidates.length ? candidates[count - 1] : to;
+
+			boolean matched = false;
+			for (int i = 0; i < count && !matched; i++) {
+				moveWindow(candidates[i]);
+				matched = checkMatch(this.digest(hashTail, hashLength));
+			}
+			// a match restarts the window, the rest of the scan is void. The scan filtered the last position
+			// before the full chunk was saved, the window may be that chunk again
+			if(!matched && moveWindow(scanned))
+				checkMatch(hash.digest());
+		}
+		System.out.println("Hashhead: " + hashHead + " HashTail: " + hashTail + " ChunkTail: " + chunkTail + " ChunkLength: " + chunkLength);
+
+		if(chunkLength > 0)
+			saveChunk(this.digest(chunkTail, chunkLength));
+
+		if(hashLength > 0)
+			this.emitChunk(hashTail, hashLength, this.digest(hashTail, hashLength), false);
+	}
+
+	private void rollIn(final int from, final int to) {
+		if(this.mapping != null)
+			hash.rollIn(this.mapping, from, to);
+		else
+			hash.rollIn(buff, from, to);
+	}
 
+	private long digest(final int offset, final int length) {
+		return this.mapping != null ? RollingHash.digest(this.mapping, offset, length) : RollingHash.digest(buff, offset, length);
+	}
+
+	/**
+	 * Cuts the input with the chunker. Every fill of the buffer becomes a batch for the strong hash stage, the
+	 * uncut rest is moved into a fresh buffer from the pool.
 	 */
-	@Override
-	public void run() {
+	private void runChunker() throws IOException {
+		final BufferPool buffers = new BufferPool(buff.length, BackupCreator.HASH_QUEUE + 2);
+		final ExecutorService hashPool = Executors.newFixedThreadPool(BackupCreator.HASH_THREADS);
+		final RuntimeException[] storeFailure = new RuntimeException[1];
+		final Thread storer = this.startStoreStage(buffers, storeFailure);
 
 		try {
-			int readed = 0;
-			while((readed = this.in.read(buff, hashHead, chunkTail <= hashHead ? buff.length - hashHead : chunkTail - hashHead)) != -1) {
-				this.totalSHA.update(buff, hashHead, readed);
-				this.inputLength += readed;
-
-				while(readed-- != 0) {
-					if(hashLength == this.MAX_CHUNK_SIZE) {
-						advanceHash();
-					} else {
-						readInHash();
-					}
+			ChunkBatch batch = new ChunkBatch(buffers.take());
+			int start = 0;
+			int end = 0;
+			boolean eof = false;
+
+			while(true) {
+				if(!eof && end - start < this.chunker.getMaxSize()) {
+					final ChunkBatch next = new ChunkBatch(buffers.take());
+					System.arraycopy(batch.data, start, next.data, 0, end - start);
+					end -= start;
+					start = 0;
+					this.submit(batch, hashPool, buffers);
+					batch = next;
+
+					end = this.fill(batch.data, end);
+					eof = end < batch.data.length;
+				}
+				if(start == end)
+					break;
 
-					if(hashLength >= this.MAX_CHUNK_SIZE) {
-						checkMatch();
+				final int length = this.chunker.nextChunk(batch.data, start, end - start);
+				batch.add(start, length);
+				start += length;
+			}
+			this.submit(batch, hashPool, buffers);
+		} finally {
+			this.finishStoreStage(storer, hashPool);
+		}
+
+		if(storeFailure[0] != null)
+			throw storeFailure[0];
+	}
+
+	/**
+	 * Cuts the channel in parallel. A bounded number of segments is cut ahead, this thread stitches them together
+	 * in order and computes the SHA-256 of the input.
+	 */
+	private void runParallel() throws IOException {
+		final long size = this.channel.size();
+		final int maxSize = this.chunker.getMaxSize();
+		final int segmentSize = Math.max(BackupCreator.SEGMENT_SIZE, maxSize * 4);
+		final int ahead = BackupCreator.HASH_THREADS * 2;
+		// the mappings overlap by maxSize, so every segment fits into one of them
+		final long mappingSize = (long)segmentSize * Math.max(1, BackupCreator.MAPPING_SIZE / segmentSize);
+
+		final MessageDigest totalSHA;
+		try {
+			totalSHA = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 is required.", e);
+		}
+
+		final ForkJoinPool chunkPool = new ForkJoinPool(BackupCreator.HASH_THREADS);
+		final ExecutorService hashPool = Executors.newFixedThreadPool(BackupCreator.HASH_THREADS);
+		final RuntimeException[] storeFailure = new RuntimeException[1];
+		final Thread storer = this.startStoreStage(null, storeFailure);
+
+		try {
+			final Deque<Future<Segment>> cutting = new ArrayDeque<>();
+			long next = this.channel.position();
+			long chunkStart = next;
+			ByteBuffer mapping = null;
+			long mappingStart = 0;
+
+			while(next < size || !cutting.isEmpty()) {
+				while(next < size && cutting.size() < ahead) {
+					if(mapping == null || next - mappingStart >= mappingSize) {
+						mappingStart = next;
+						mapping = this.channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(size - next, mappingSize + maxSize));
 					}
+
+					// the segment holds the chunks starting in it, they may reach maxSize into the next one
+					final ByteBuffer view = mapping.duplicate();
+					view.limit((int)Math.min(view.capacity(), next - mappingStart + segmentSize + maxSize));
+					view.position((int)(next - mappingStart));
+
+					final Segment segment = new Segment(view.slice(), next, (int)Math.min(segmentSize, size - next));
+					cutting.add(chunkPool.submit(() -> segment.cut(this.chunker)));
+					next += segment.length;
 				}
+
+				final Segment segment = BackupCreator.get(cutting.remove());
+				chunkStart = this.stitch(segment, chunkStart);
+
+				final ByteBuffer owned = segment.batch.buffer.duplicate();
+				owned.limit(segment.length);
+				totalSHA.update(owned);
+				this.channelLength += segment.length;
+				this.submit(segment.batch, hashPool, null);
 			}
-			System.out.println("Hashhead: " + hashHead + " HashTail: " + hashTail + " ChunkTail: " + chunkTail + " ChunkLength: " + chunkLength);
+			this.channelSha256 = totalSHA.digest();
+		} finally {
+			chunkPool.shutdownNow();
+			this.finishStoreStage(storer, hashPool);
+		}
 
-			if(chunkLength > 0)
-				saveChunk(RollingHash.digest(buff, chunkTail, chunkLength));
+		if(storeFailure[0] != null)
+			throw storeFailure[0];
+	}
 
-			if(hashHead != hashTail) {
-				if(hashLength >= BackupCreator.MIN_CHUNK_SIZE) {
-					final long partChunkHash = RollingHash.digest(buff, hashTail, hashLength);
-					final byte[] chunksha = this.calcSha(buff, hashTail, hashLength);
-					this.instructChunkID(this.cs.saveChunk(buff, hashTail, hashLength, chunksha, partChunkHash));
-				} else {
-					this.instructBytes(buff, hashTail, hashLength);
+	/**
+	 * Fills the batch of the segment with the real chunks, the chunks starting at chunkStart are cut here until
+	 * they meet the chunks cut from the segment start.
+	 * @return the start of the first chunk in the next segment
+	 */
+	private long stitch(final Segment segment, final long chunkStart) {
+		int start = (int)(chunkStart - segment.start);
+		int i = 0;
+		while(start < segment.length) {
+			while(i < segment.count && segment.starts[i] < start) {
+				i++;
+			}
+			if(i < segment.count && segment.starts[i] == start) {
+				for (; i < segment.count; i++) {
+					final int end = i + 1 < segment.count ? segment.starts[i + 1] : segment.end;
+					segment.batch.add(segment.starts[i], end - segment.starts[i]);
 				}
+				return segment.start + segment.end;
 			}
-		} catch (final IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+
+			final int length = this.chunker.nextChunk(segment.batch.buffer, start, segment.available - start);
+			segment.batch.add(start, length);
+			start += length;
+			seamChunks++;
 		}
+		return segment.start + start;
+	}
 
+	private Thread startStoreStage(final BufferPool buffers, final RuntimeException[] storeFailure) {
+		this.hashedChunks = new StageQueue<>("strong hash", BackupCreator.HASH_QUEUE);
+		final Thread storer = new Thread(() -> storeChunks(buffers, storeFailure), "backup-store");
+		storer.start();
+		return storer;
+	}
 
+	private void finishStoreStage(final Thread storer, final ExecutorService hashPool) {
+		// the store thread ends at the empty batch
+		final FutureTask<ChunkBatch> endMarker = new FutureTask<>(() -> null);
+		endMarker.run();
+		this.hashedChunks.put(endMarker);
+
+		while(storer.isAlive()) {
+			try {
+				storer.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+		hashPool.shutdown();
+	}
 
+	/**
+	 * @param buffers the pool of the batch buffer, null for a mapped batch
+	 */
+	private void submit(final ChunkBatch batch, final ExecutorService hashPool, final BufferPool buffers) {
+		if(batch.count == 0) {
+			if(buffers != null)
+				buffers.release(batch.data);
+			return;
+		}
+		batch.sequence = this.submittedBatches++;
+		this.hashedChunks.put(hashPool.submit(() -> batch.hash(this.fills)));
 	}
 
-	private void advanceHash() {
-		hash.rotate(buff[hashHead++], buff[hashTail++]);
-		chunkLength++;
+	/**
+	 * The store stage, saves the hashed batches in order. After a failure the batches are only drained, so the
+	 * chunking thread doesn't block on the pool.
+	 */
+	private void storeChunks(final BufferPool buffers, final RuntimeException[] failure) {
+		while(true) {
+			final ChunkBatch batch;
+			try {
+				batch = this.hashedChunks.take().get();
+			} catch (final InterruptedException | ExecutionException e) {
+				if(failure[0] == null)
+					failure[0] = new RuntimeException(e instanceof ExecutionException ? e.getCause() : e);
+				continue;
+			}
+			if(batch == null)
+				return;
+
+			try {
+				if(failure[0] == null) {
+					fillChunks += batch.fills;
+					for (int i = 0; i < batch.count; i++) {
+						if(batch.lengths[i] < BackupCreator.MIN_CHUNK_SIZE) {
+							emittedShortChunks++;
+							this.instructBytes(batch.buffer, batch.offsets[i], batch.lengths[i]);
+						} else if(!this.storeChunk(batch.buffer, batch.offsets[i], batch.lengths[i], batch.shas[i], batch.rollingHashes[i]) && batch.matches[i]) {
+							falsePositives++;
+						}
+					}
+				}
+			} catch (final RuntimeException e) {
+				failure[0] = e;
+			}
+			if(buffers != null)
+				buffers.release(batch.data);
+			this.storedBatches = batch.sequence + 1;
+		}
+	}
 
-		if(hashHead == buff.length)
-			hashHead = 0;
-		if(hashTail == buff.length)
-			hashTail = 0;
+	/**
+	 * Moves buff[from, end) to the front of the buffer and fills the buffer up.
+	 * @return the new end, less than the buffer length only at the end of the input
+	 */
+	private int compactAndFill(final int from, final int end) throws IOException {
+		if(this.channel != null)
+			return this.remap(from);
+
+		System.arraycopy(buff, from, buff, 0, end - from);
+		chunkTail -= from;
+		hashTail -= from;
+		hashHead -= from;
+
+		return this.fill(buff, end - from);
+	}
+
+	/**
+	 * Maps the input from the mapping position from on, the chunks found so far are handed to the store stage.
+	 * @return the new end, the end of the input or at least {@link #MAPPING_SIZE} behind from
+	 */
+	private int remap(final int from) throws IOException {
+		if(this.rollingBatch != null)
+			this.submitRollingBatch();
+
+		final long start = this.mappingStart + from;
+		this.mapping = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(this.channelEnd - start, BackupCreator.MAPPING_SIZE));
+		this.mappingStart = start;
+		chunkTail -= from;
+		hashTail -= from;
+		hashHead -= from;
+		this.startRollingBatch();
+
+		// the mappings overlap by the chunk which wasn't stored yet
+		final ByteBuffer unhashed = this.mapping.duplicate();
+		unhashed.position((int)(this.inputHashedEnd - start));
+		this.inputHashedEnd = start + this.mapping.capacity();
+		this.inputHashed = this.inputHashPool.submit(() -> this.inputSha.update(unhashed));
+
+		return this.mapping.capacity();
+	}
+
+	/**
+	 * @return the new end, less than the buffer length only at the end of the input
+	 */
+	private int fill(final byte[] data, int end) throws IOException {
+		int readed;
+		while(end < data.length && (readed = this.in.read(data, end, data.length - end)) != -1) {
+			end += readed;
+		}
+		return end;
+	}
+
+	/**
+	 * Moves the full window to end at head, the bytes left behind are pending for the next chunk.
+	 * @return true if a full chunk was saved
+	 */
+	private boolean moveWindow(final int head) {
+		hashHead = head;
+		hashTail = head - hashLength;
+		chunkLength = hashTail - chunkTail;
 
 		if(chunkLength == this.MAX_CHUNK_SIZE) {
 			// nextChunkHash could only be used by full chunks
@@ -132,109 +577,172 @@ public class BackupCreator implements Runnable {
 			nextChunkHash = hash.digest();
 			chunkTail = hashTail;
 			chunkLength = 0;
+			return true;
 		}
+		return false;
 	}
 
-	private void readInHash() {
-		hash.rollIn(buff[hashHead++]);
-		hashLength++;
+	/**
+	 * @return true if the window is a known chunk, the window is restarted then
+	 */
+	private boolean checkMatch(final long digest) {
+		if(!this.isKnown(digest))
+			return false;
 
-		if(hashHead == buff.length)
-			hashHead = 0;
+		if(chunkTail != hashTail) {
+			//first push chunk part
 
-		if(hashLength == this.MAX_CHUNK_SIZE) {
-			nextChunkHash = hash.digest();
+			// nextChunkHash could only be used by full chunks
+			final long partChunkHash = this.digest(chunkTail, chunkLength);
+			saveChunk(partChunkHash);
+
+			chunkLength = 0;
 		}
+		this.emitChunk(hashTail, hashLength, digest, true);
+		hash = new RollingHash();
+		chunkTail = hashTail = hashHead;
+		hashLength = 0;
+		return true;
 	}
 
-	private void checkMatch() {
-		if(this.cs.hasChunk(hash.digest())) {
-
-			final byte[] sha = this.calcSha(buff, hashTail, hashLength);
-			final ChunkID curr = this.cs.getChunk(hash.digest(), hashLength, sha);
-			if(curr != null) {
-				foundChunks++;
-				if(chunkTail != hashTail) {
-					//first push chunk part
+	/**
+	 * @return whether a chunk with the rolling hash is stored or on the way to the store
+	 */
+	private boolean isKnown(final long rollingHash) {
+		this.rollingLookups++;
+		if(this.cs.hasChunk(rollingHash)) {
+			this.rollingMatches++;
+			return true;
+		}
+		return this.pending.contains(rollingHash);
+	}
 
-					// nextChunkHash could only be used by full chunks
-					final long partChunkHash = RollingHash.digest(buff, chunkTail, chunkLength);
-					saveChunk(partChunkHash);
+	private void saveChunk(long hash) {
+		this.emitChunk(chunkTail, chunkLength, hash, false);
+	}
 
-					chunkLength = 0;
-				}
-				this.instructChunkID(curr);
-				hash = new RollingHash();
-				chunkTail = hashTail = hashHead;
-				hashLength = 0;
-
-			} else {
-				falsePositives++;
-				System.out.println("False positive");
-			}
+	/**
+	 * Copies buff[offset, offset + length) into the batch for the store stage, a chunk of the mapping is only
+	 * referred to.
+	 * @param match whether the rolling hash matched a known chunk
+	 */
+	private void emitChunk(final int offset, final int length, final long rollingHash, final boolean match) {
+		if(!this.rollingBatch.fits(length)) {
+			this.submitRollingBatch();
+			this.startRollingBatch();
 		}
+		if(this.mapping != null)
+			this.rollingBatch.add(offset, length, rollingHash, match);
+		else
+			this.rollingBatch.append(buff, offset, length, rollingHash, match);
+		if(length >= BackupCreator.MIN_CHUNK_SIZE)
+			this.pending.add(rollingHash);
 	}
 
+	private void startRollingBatch() {
+		// a mapped batch takes about as many bytes as a buffer one
+		this.rollingBatch = this.mapping != null ? new ChunkBatch(this.mapping, buff.length) : new ChunkBatch(this.rollingBuffers.take());
+		this.pending.expire(this.storedBatches);
+		this.pending.add(this.rollingBatch);
+	}
 
-
-	private void saveChunk(long hash) {
-		if(chunkLength < BackupCreator.MIN_CHUNK_SIZE) {
-			emittedShortChunks++;
-			this.instructBytes(buff, chunkTail, chunkLength);
-
-		} else {
-			final byte[] chunksha = this.calcSha(buff, chunkTail, chunkLength);
-
-			final ChunkID prev = this.cs.getChunk(hash, chunkLength, chunksha);
-			if(prev != null) {
-				foundChunks++;
-				this.instructChunkID(prev);
-			} else {
-				this.instructChunkID(this.cs.saveChunk(buff, chunkTail, chunkLength, chunksha, hash));
-			}
-		}
+	private void submitRollingBatch() {
+		this.submit(this.rollingBatch, this.rollingHashPool, this.rollingBuffers);
 	}
 
-	public ByteString getBackupInstructions() throws IOException {
-		final ByteString.Output out = ByteString.newOutput();
-		for (final BackupInstruction inst : this.instructions) {
-			inst.writeDelimitedTo(out);
+	/**
+	 * @return true if the chunk was already stored
+	 */
+	private boolean storeChunk(final ByteBuffer data, final int offset, final int length, final byte[] chunksha, final long hash) {
+		final ChunkID prev = this.cs.getChunk(hash, length, chunksha);
+		if(prev != null) {
+			foundChunks++;
+			this.instructChunkID(prev);
+			return true;
 		}
-
-		return out.toByteString();
+		this.instructChunkID(this.cs.saveChunk(data, offset, length, chunksha, hash));
+		return false;
 	}
 
 	public long getInputLength() {
-		return this.inputLength;
+		return this.in != null ? this.in.getLength() : this.channelLength;
 	}
 
 	public ByteString getSha256Hash() {
-		return ByteString.copyFrom(this.totalSHA.digest());
+		return ByteString.copyFrom(this.in != null ? this.in.getSha256() : this.channelSha256);
 	}
 
 	public void printStats() {
-		System.err.println("Found Chunks: " + foundChunks + " False Positives: " + falsePositives + " Short chunks: " + emittedShortChunks);
+		System.err.println("Found Chunks: " + foundChunks + " False Positives: " + falsePositives + " Short chunks: " + emittedShortChunks
+				+ (this.in == null && this.chunker != null ? " Chunks cut at seams: " + seamChunks : ""));
+		System.err.println("Instructions: " + instructionCount + " Repeated chunks: " + repeatedChunks + " Fill chunks: " + fillChunks);
+		if(this.in != null)
+			this.in.printStats();
+		if(this.hashedChunks != null)
+			this.hashedChunks.printStats();
 	}
 
 	private void instructBytes(final byte[] chunk, final int offset, final int length) {
-		ByteString bs;
-		if(length > chunk.length - offset) {
-			final Output tmp = ByteString.newOutput(length);
-			tmp.write(chunk, offset, chunk.length - offset);
-			tmp.write(chunk, 0, length - (chunk.length - offset));
+		this.pendingBytes.write(chunk, offset, length);
+		if(this.pendingBytes.size() >= this.MAX_CHUNK_SIZE)
+			this.flushInstruction();
+	}
 
-			bs = tmp.toByteString();
-		} else {
-			bs = ByteString.copyFrom(chunk, offset, length);
+	private void instructBytes(final ByteBuffer chunk, final int offset, final int length) {
+		if(chunk.hasArray()) {
+			this.instructBytes(chunk.array(), chunk.arrayOffset() + offset, length);
+			return;
 		}
+		final ByteBuffer src = chunk.duplicate();
+		src.limit(offset + length);
+		src.position(offset);
 
-		final BackupInstruction inst = BackupInstruction.newBuilder().setBytesToEmit(bs).build();
-		this.instructions.add(inst);
+		final byte[] data = new byte[length];
+		src.get(data);
+		this.instructBytes(data, 0, length);
 	}
 
 	private void instructChunkID(final ChunkID id) {
-		final BackupInstruction inst = BackupInstruction.newBuilder().setChunkToEmit(id.toByteString()).build();
-		this.instructions.add(inst);
+		final ByteString chunk = id.toByteString();
+		if(this.chunkRepeat && this.pendingBytes.size() == 0 && chunk.equals(this.pendingChunk)) {
+			this.pendingRepeat++;
+			repeatedChunks++;
+			return;
+		}
+
+		this.flushInstruction();
+		this.pendingChunk = chunk;
+		this.pendingRepeat = 1;
+	}
+
+	/**
+	 * Writes the coalesced instruction: the pending chunk with its repeat count followed by the pending bytes.
+	 */
+	private void flushInstruction() {
+		if(this.pendingChunk == null && this.pendingBytes.size() == 0)
+			return;
+
+		final BackupInstruction.Builder inst = BackupInstruction.newBuilder();
+		if(this.pendingChunk != null) {
+			inst.setChunkToEmit(this.pendingChunk);
+			if(this.pendingRepeat > 1)
+				inst.setChunkRepeat(this.pendingRepeat);
+			this.pendingChunk = null;
+		}
+		if(this.pendingBytes.size() > 0) {
+			inst.setBytesToEmit(this.pendingBytes.toByteString());
+			this.pendingBytes.reset();
+		}
+		this.instruct(inst.build());
+	}
+
+	private void instruct(final BackupInstruction inst) {
+		instructionCount++;
+		try {
+			inst.writeDelimitedTo(this.instructions);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't write the instructions", e);
+		}
 	}
 
 
@@ -246,14 +754,261 @@ public class BackupCreator implements Runnable {
 				);
 	}*/
 
-	byte[] calcSha(final byte[] buff, final int offset, final int length) {
-		this.chunkHash.reset();
-		if(length > buff.length - offset) {
-			this.chunkHash.update(buff, offset, buff.length - offset);
-			this.chunkHash.update(buff, 0, length - (buff.length - offset));
-		} else {
-			this.chunkHash.update(buff, offset, length);
+
+	/**
+	 * The chunks cut from one buffer fill or one segment of a mapped input.
+	 */
+	private static final class ChunkBatch {
+		/** every hash thread keeps its digest */
+		private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (final NoSuchAlgorithmException e) {
+				throw new Error("SHA-1 is required.", e);
+			}
+		});
+
+		/** null for a mapped batch */
+		final byte[] data;
+		final ByteBuffer buffer;
+		int count;
+		int[] offsets = new int[64];
+		int[] lengths = new int[64];
+		long[] rollingHashes = new long[64];
+		/** the rolling match knows the rolling hashes and whether they matched a known chunk */
+		boolean rollingHashesKnown;
+		boolean[] matches = new boolean[64];
+		byte[][] shas;
+		/** the chunks which were fills */
+		int fills;
+		/** the bytes of the chunks added by the rolling match */
+		int end;
+		/** the bytes of rolling match chunks the batch takes */
+		final int capacity;
+		/** the position in the store order, set when the batch is submitted */
+		long sequence = Long.MAX_VALUE;
+
+		ChunkBatch(final byte[] data) {
+			this.data = data;
+			this.buffer = ByteBuffer.wrap(data);
+			this.capacity = data.length;
+		}
+
+		ChunkBatch(final ByteBuffer buffer) {
+			this(buffer, 0);
+		}
+
+		/**
+		 * A mapped batch which chunks refer to the buffer.
+		 */
+		ChunkBatch(final ByteBuffer buffer, final int capacity) {
+			this.data = null;
+			this.buffer = buffer;
+			this.capacity = capacity;
+		}
+
+		void add(final int offset, final int length) {
+			if(this.count == this.offsets.length) {
+				this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+				this.lengths = Arrays.copyOf(this.lengths, this.count * 2);
+				this.rollingHashes = Arrays.copyOf(this.rollingHashes, this.count * 2);
+				this.matches = Arrays.copyOf(this.matches, this.count * 2);
+			}
+			this.offsets[this.count] = offset;
+			this.lengths[this.count] = length;
+			this.count++;
+		}
+
+		boolean fits(final int length) {
+			return this.end + length <= this.capacity;
+		}
+
+		/**
+		 * Copies a chunk of the rolling match behind the last one.
+		 */
+		void append(final byte[] chunk, final int offset, final int length, final long rollingHash, final boolean match) {
+			System.arraycopy(chunk, offset, this.data, this.end, length);
+			this.add(this.end, length, rollingHash, match);
+		}
+
+		/**
+		 * Adds a chunk of the rolling match which is already in the buffer.
+		 */
+		void add(final int offset, final int length, final long rollingHash, final boolean match) {
+			this.add(offset, length);
+			this.rollingHashes[this.count - 1] = rollingHash;
+			this.matches[this.count - 1] = match;
+			this.rollingHashesKnown = true;
+			this.end += length;
+		}
+
+		ChunkBatch hash(final FillChunks fillChunks) {
+			final MessageDigest sha1 = ChunkBatch.SHA1.get();
+			this.shas = new byte[this.count][];
+			for (int i = 0; i < this.count; i++) {
+				if(this.lengths[i] < BackupCreator.MIN_CHUNK_SIZE)
+					continue;
+				final FillChunks.Fill fill = fillChunks.match(this.buffer, this.offsets[i], this.lengths[i]);
+				if(fill != null) {
+					if(!this.rollingHashesKnown)
+						this.rollingHashes[i] = fill.rollingHash;
+					this.shas[i] = fill.sha;
+					this.fills++;
+					continue;
+				}
+				if(this.data != null) {
+					if(!this.rollingHashesKnown)
+						this.rollingHashes[i] = RollingHash.digest(this.data, this.offsets[i], this.lengths[i]);
+					sha1.update(this.data, this.offsets[i], this.lengths[i]);
+				} else {
+					if(!this.rollingHashesKnown)
+						this.rollingHashes[i] = RollingHash.digest(this.buffer, this.offsets[i], this.lengths[i]);
+					final ByteBuffer chunk = this.buffer.duplicate();
+					chunk.limit(this.offsets[i] + this.lengths[i]);
+					chunk.position(this.offsets[i]);
+					sha1.update(chunk);
+				}
+				this.shas[i] = sha1.digest();
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * The rolling hashes of the chunks on the way to the store, the rolling match has to find them before they are
+	 * in the index. The table is rebuilt from the batches which aren't stored yet whenever the store stage got
+	 * further, there are only a few of them.
+	 */
+	private static final class PendingHashes {
+		private static final int MIN_BITS = 10;
+
+		private final Deque<ChunkBatch> batches = new ArrayDeque<>();
+		/** 0 marks a free slot */
+		private long[] table = new long[1 << PendingHashes.MIN_BITS];
+		private int size;
+		private boolean zero;
+
+		void add(final ChunkBatch batch) {
+			this.batches.add(batch);
+		}
+
+		void add(final long rollingHash) {
+			if(rollingHash == 0) {
+				this.zero = true;
+				return;
+			}
+			if(this.size * 2 >= this.table.length)
+				this.rebuild(this.table.length * 2);
+
+			int slot = PendingHashes.slot(rollingHash, this.table.length);
+			while(this.table[slot] != 0) {
+				if(this.table[slot] == rollingHash)
+					return;
+				slot = (slot + 1) & (this.table.length - 1);
+			}
+			this.table[slot] = rollingHash;
+			this.size++;
+		}
+
+		boolean contains(final long rollingHash) {
+			if(rollingHash == 0)
+				return this.zero;
+
+			int slot = PendingHashes.slot(rollingHash, this.table.length);
+			long stored;
+			while((stored = this.table[slot]) != 0) {
+				if(stored == rollingHash)
+					return true;
+				slot = (slot + 1) & (this.table.length - 1);
+			}
+			return false;
+		}
+
+		/**
+		 * Drops the batches before the given sequence.
+		 */
+		void expire(final long stored) {
+			if(this.batches.isEmpty() || this.batches.peek().sequence >= stored)
+				return;
+			while(!this.batches.isEmpty() && this.batches.peek().sequence < stored) {
+				this.batches.remove();
+			}
+			this.rebuild(1 << PendingHashes.MIN_BITS);
+		}
+
+		private void rebuild(final int minSize) {
+			int chunks = 0;
+			for (final ChunkBatch batch : this.batches) {
+				chunks += batch.count;
+			}
+			int tableSize = minSize;
+			while(tableSize <= chunks * 2) {
+				tableSize *= 2;
+			}
+
+			this.table = new long[tableSize];
+			this.size = 0;
+			this.zero = false;
+			for (final ChunkBatch batch : this.batches) {
+				for (int i = 0; i < batch.count; i++) {
+					if(batch.lengths[i] >= BackupCreator.MIN_CHUNK_SIZE)
+						this.add(batch.rollingHashes[i]);
+				}
+			}
+		}
+
+		private static int slot(final long rollingHash, final int tableSize) {
+			return (int)(rollingHash ^ (rollingHash >>> 32)) & (tableSize - 1);
+		}
+	}
+
+	/**
+	 * A part of a seekable input and the chunks cut from its start.
+	 */
+	private static final class Segment {
+		final ChunkBatch batch;
+		final long start;
+		final int length;
+		/** the mapped bytes, up to the maximum chunk size more than length */
+		final int available;
+
+		int count;
+		int[] starts = new int[1024];
+		/** the end of the last chunk, at or behind length */
+		int end;
+
+		Segment(final ByteBuffer buffer, final long start, final int length) {
+			this.batch = new ChunkBatch(buffer);
+			this.start = start;
+			this.length = length;
+			this.available = buffer.capacity();
+		}
+
+		Segment cut(final Chunker chunker) {
+			final ByteBuffer data = this.batch.buffer;
+			int start = 0;
+			while(start < this.length) {
+				if(this.count == this.starts.length)
+					this.starts = Arrays.copyOf(this.starts, this.count * 2);
+				this.starts[this.count++] = start;
+				start += chunker.nextChunk(data, start, this.available - start);
+			}
+			this.end = start;
+			return this;
+		}
+	}
+
+	private static <T> T get(final Future<T> future) throws IOException {
+		while(true) {
+			try {
+				return future.get();
+			} catch (final InterruptedException e) {
+				// ignore
+			} catch (final ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
 		}
-		return this.chunkHash.digest();
 	}
 }
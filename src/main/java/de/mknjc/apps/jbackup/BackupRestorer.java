@@ -4,8 +4,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.IntStream;
@@ -18,52 +20,67 @@ public class BackupRestorer {
 	public static void restore(final List<BackupInstruction> instructions, final Store store, final OutputStream os) throws IOException {
 		final List<Action> backupActions = new ArrayList<>();
 
+		final List<ByteString> chunkRefs = new ArrayList<>();
+		for (final BackupInstruction instruction : instructions) {
+			if(instruction.hasChunkToEmit())
+				chunkRefs.add(instruction.getChunkToEmit());
+		}
+		final ChunkID[] chunks = store.lookupIDs(chunkRefs);
+
+		int chunk = 0;
 		for (final BackupInstruction instruction : instructions) {
 			ChunkID id = null;
 			if(instruction.hasChunkToEmit()) {
-				id = store.lookupID(instruction.getChunkToEmit());
+				id = chunks[chunk++];
 				if(id == null)
 					throw new RuntimeException("Cannot find chunk");
 			}
-			final Action a = new Action(Action.Type.Emit, null, id, instruction.getBytesToEmit());
+			final Action a = new Action(Action.Type.Emit, null, -1, id, instruction.getBytesToEmit());
+			a.repeat = instruction.getChunkRepeat();
 			backupActions.add(a);
 		}
 
-		final List<byte[]> bundlesInCache = new ArrayList<>();
+		// the bundle numbers in the cache slots, -1 marks a free slot
+		final int[] bundlesInCache = new int[store.getMaxChunksInCache()];
+		Arrays.fill(bundlesInCache, -1);
 		for (int i = 0; i < backupActions.size(); i++) {
 			int loadPosition = 0;
 			final ChunkID c = backupActions.get(i).chunk;
 			if(c == null)
 				continue;
 
-			if(bundlesInCache.contains(c.getBundleID()))
+			final int bundle = c.getBundle().getNumber();
+			int slot = BackupRestorer.indexOf(bundlesInCache, bundle);
+			if(slot != -1) {
+				backupActions.get(i).slot = slot;
 				continue;
+			}
 
-
-			if(bundlesInCache.size() >= store.getMaxChunksInCache()) {
+			slot = BackupRestorer.indexOf(bundlesInCache, -1);
+			if(slot == -1) {
 				// check for each bundle the nex used time
-				final int[] nextUsed = new int[bundlesInCache.size()];
+				final int[] nextUsed = new int[bundlesInCache.length];
 				Arrays.fill(nextUsed, Integer.MAX_VALUE);
 
 				for (int j = i; j < backupActions.size(); j++) {
 					final ChunkID id = backupActions.get(j).chunk;
 					if(id != null) {
-						final int idx = bundlesInCache.indexOf(id.getBundleID());
+						final int idx = BackupRestorer.indexOf(bundlesInCache, id.getBundle().getNumber());
 						if(idx != -1 && nextUsed[idx] == Integer.MAX_VALUE)
 							nextUsed[idx] = j;
 					}
 				}
-				final int maxPos = IntStream.range(1, nextUsed.length).reduce(0, (a,b)->nextUsed[a]<nextUsed[b]? b: a);
+				slot = IntStream.range(1, nextUsed.length).reduce(0, (a,b)->nextUsed[a]<nextUsed[b]? b: a);
 
 				// we found the bundle which get used at the latest
-				final byte[] bundleToRemove = bundlesInCache.remove(maxPos);
+				final int bundleToRemove = bundlesInCache[slot];
 				//find when it was used last
 				for (int j = i - 1; j >= 0; j--) {
 					final ChunkID id = backupActions.get(j).chunk;
 					if(id != null) {
-						if(Arrays.equals(id.getBundleID(), bundleToRemove)) {
+						if(id.getBundle().getNumber() == bundleToRemove) {
 							// the action which need the bundle is in j so j+1 gets the unload and j+2 the next load
-							backupActions.add(j + 1, new Action(Action.Type.UnloadBundle, bundleToRemove, null, null));
+							backupActions.add(j + 1, new Action(Action.Type.UnloadBundle, id.getBundle(), slot, null, null));
 							loadPosition = j + 2;
 							i++; // we added a instruction before i so increase i
 							break;
@@ -75,27 +92,39 @@ public class BackupRestorer {
 			}
 
 			// if we are here there is space in the cache and we also know where to put the load command
-			backupActions.add(loadPosition, new Action(Action.Type.LoadBundle, c.getBundleID(), null, null));
+			backupActions.add(loadPosition, new Action(Action.Type.LoadBundle, c.getBundle(), slot, null, null));
 			i++;
-			bundlesInCache.add(c.getBundleID());
+			bundlesInCache[slot] = bundle;
+			backupActions.get(i).slot = slot;
 		}
 
-		final HashMap<byte[], Future<Bundle>> bundleCache = new HashMap<>();
+		// the chunks emitted from each load, so of a bundle in blocks only these blocks are decompressed
+		final List<Set<ChunkID>> loadedChunks = new ArrayList<>(Collections.nCopies(bundlesInCache.length, null));
+		for (final Action a : backupActions) {
+			if(a.type == Action.Type.LoadBundle) {
+				a.chunks = new HashSet<>();
+				loadedChunks.set(a.slot, a.chunks);
+			} else if(a.type == Action.Type.Emit && a.chunk != null) {
+				loadedChunks.get(a.slot).add(a.chunk);
+			}
+		}
+
+		final List<Future<Bundle>> bundleCache = new ArrayList<>(Collections.nCopies(bundlesInCache.length, null));
 
 		for (final Action a : backupActions) {
 			switch (a.type) {
 			case LoadBundle:
-				bundleCache.put(a.bundle, store.loadBundle(a.bundle));
+				bundleCache.set(a.slot, store.loadBundle(a.bundle, a.chunks));
 				break;
 			case UnloadBundle:
-				bundleCache.remove(a.bundle);
+				bundleCache.set(a.slot, null);
 				break;
 			case Emit:
 				if(a.chunk != null) {
 					Bundle b;
 					while(true) {
 						try {
-							b = bundleCache.get(a.chunk.getBundleID()).get();
+							b = bundleCache.get(a.slot).get();
 							break;
 						} catch (final InterruptedException e) {
 							// ignore
@@ -103,7 +132,7 @@ public class BackupRestorer {
 							throw new IOException(e);
 						}
 					}
-					b.writeTo(os, a.chunk);
+					b.writeTo(os, a.chunk, a.repeat);
 				}
 				if(a.data != null) {
 					a.data.writeTo(os);
@@ -120,16 +149,31 @@ public class BackupRestorer {
 
 	}
 
+	private static int indexOf(final int[] array, final int value) {
+		for (int i = 0; i < array.length; i++) {
+			if(array[i] == value)
+				return i;
+		}
+		return -1;
+	}
+
 
 	private static final class Action {
-		private final byte[] bundle;
+		private final BundleId bundle;
 		private final ChunkID chunk;
 		private final ByteString data;
 		private final Type type;
-
-		Action(final Type type, final byte[] bundle, final ChunkID chunk, final ByteString data) {
+		/** the cache slot of the bundle */
+		private int slot;
+		/** how often the chunk is emitted */
+		private int repeat = 1;
+		/** the chunks emitted from a loaded bundle */
+		private Set<ChunkID> chunks;
+
+		Action(final Type type, final BundleId bundle, final int slot, final ChunkID chunk, final ByteString data) {
 			this.type = type;
 			this.bundle = bundle;
+			this.slot = slot;
 			this.chunk = chunk;
 			this.data = data;
 		}
@@ -141,7 +185,9 @@ public class BackupRestorer {
 			switch (this.type) {
 			case Emit:
 				if(this.chunk != null) {
-					sb.append(" chunk ").append(String.format("0x%08x", this.chunk.getRollingHash())).append(" Bundle: ").append(ZbackupStore.bundleString(this.chunk.getBundleID()));
+					sb.append(" chunk ").append(String.format("0x%08x", this.chunk.getRollingHash())).append(" Bundle: ").append(this.chunk.getBundle());
+					if(this.repeat > 1)
+						sb.append(" ").append(this.repeat).append(" times");
 				}
 				if(this.data != null) {
 					sb.append(" ").append(this.data.size()).append(" bytes data");
@@ -149,7 +195,7 @@ public class BackupRestorer {
 				break;
 			case LoadBundle:
 			case UnloadBundle:
-				sb.append(" bundle ").append(ZbackupStore.bundleString(this.bundle));
+				sb.append(" bundle ").append(this.bundle);
 			}
 
 			return sb.toString();
@@ -0,0 +1,49 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of equally sized buffers. The buffers are allocated on demand up to the maximum, after that take waits
+ * for a buffer to be released.
+ */
+final class BufferPool {
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ArrayBlockingQueue<byte[]> free;
+	private int allocated;
+
+	BufferPool(final int bufferSize, final int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.free = new ArrayBlockingQueue<>(maxBuffers);
+	}
+
+	int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	byte[] take() {
+		byte[] buffer = this.free.poll();
+		if(buffer != null)
+			return buffer;
+
+		synchronized (this) {
+			if(this.allocated < this.maxBuffers) {
+				this.allocated++;
+				return new byte[this.bufferSize];
+			}
+		}
+
+		while(true) {
+			try {
+				return this.free.take();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	void release(final byte[] buffer) {
+		this.free.add(buffer);
+	}
+}
@@ -1,5 +1,6 @@
 package de.mknjc.apps.jbackup;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -9,13 +10,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.zip.CRC32;
-import org.tukaani.xz.LZMA2Options;
-import org.tukaani.xz.SingleXZInputStream;
-import org.tukaani.xz.XZOutputStream;
 
 import com.backblaze.erasure.OutputInputByteTableCodingLoop;
 import com.backblaze.erasure.ReedSolomon;
@@ -34,11 +36,28 @@ public class Bundle {
 
 	private final ByteBuffer buffer;
 
+	/** the compressed blocks of a bundle read in blocks, null otherwise */
+	private final byte[] blocks;
+	private final int[] blockOffsets;
+	private final boolean[] decoded;
+	private final int blockSize;
+	private final Codec codec;
+
 	private Bundle(final ByteBuffer buffer, final List<ChunkID> chunkIDs) {
+		this(buffer, chunkIDs, null, 0, null, null);
+	}
+
+	private Bundle(final ByteBuffer buffer, final List<ChunkID> chunkIDs, final Codec codec, final int blockSize, final byte[] blocks, final int[] blockOffsets) {
 		this.buffer = buffer;
 		this.BUNDLE_SIZE = buffer.limit();
 
 		this.chunks = chunkIDs;
+
+		this.codec = codec;
+		this.blockSize = blockSize;
+		this.blocks = blocks;
+		this.blockOffsets = blockOffsets;
+		this.decoded = blocks != null ? new boolean[blockOffsets.length - 1] : null;
 	}
 
 	public Bundle(final int maxSize) {
@@ -46,9 +65,15 @@ public class Bundle {
 		this.chunks = new ArrayList<>();
 
 		this.buffer = ByteBuffer.wrap(new byte[this.BUNDLE_SIZE]);
+
+		this.codec = null;
+		this.blockSize = 0;
+		this.blocks = null;
+		this.blockOffsets = null;
+		this.decoded = null;
 	}
 
-	public boolean addChunk(final byte[] data, final int offset, final int length, final ChunkID id) {
+	public boolean addChunk(final ByteBuffer data, final int offset, final int length, final ChunkID id) {
 		if(this.buffer.remaining() < length)
 			return false;
 
@@ -57,15 +82,20 @@ public class Bundle {
 
 		this.chunks.add(id);
 
-		if(length > data.length - offset) {
-			this.buffer.put(data, offset, data.length - offset);
-			this.buffer.put(data, 0, length - (data.length - offset));
-		} else {
-			this.buffer.put(data, offset, length);
-		}
+		final ByteBuffer src = data.duplicate();
+		src.limit(offset + length);
+		src.position(offset);
+		this.buffer.put(src);
 		return true;
 	}
 
+	/**
+	 * @return the bytes of the chunks in this bundle
+	 */
+	public int getPayloadSize() {
+		return this.buffer.position();
+	}
+
 	public boolean hasChunk(final ChunkID id) {
 		for (final ChunkID chunkID : this.chunks) {
 			if(chunkID.equals(id))
@@ -75,6 +105,13 @@ public class Bundle {
 	}
 
 	public void writeTo(final OutputStream stream, final ChunkID chunkToWrite) throws IOException {
+		this.writeTo(stream, chunkToWrite, 1);
+	}
+
+	/**
+	 * Writes the chunk the given number of times, the chunk is only looked up once.
+	 */
+	public void writeTo(final OutputStream stream, final ChunkID chunkToWrite, final int times) throws IOException {
 		int offset = 0;
 		boolean found = false;
 		for (final ChunkID chunkID : this.chunks) {
@@ -87,7 +124,37 @@ public class Bundle {
 		if(!found)
 			throw new IllegalArgumentException("Chunk not found");
 
-		stream.write(this.buffer.array(), offset, chunkToWrite.getSize());
+		this.decode(offset, chunkToWrite.getSize());
+
+		for (int i = 0; i < times; i++) {
+			stream.write(this.buffer.array(), offset, chunkToWrite.getSize());
+		}
+	}
+
+	/**
+	 * Decompresses the blocks of [offset, offset + length) which aren't decompressed yet.
+	 */
+	private synchronized void decode(final int offset, final int length) throws IOException {
+		if(this.blocks == null || length == 0)
+			return;
+
+		for (int i = offset / this.blockSize; i <= (offset + length - 1) / this.blockSize; i++) {
+			this.decodeBlock(i);
+		}
+	}
+
+	private void decodeBlock(final int block) throws IOException {
+		if(this.decoded[block])
+			return;
+
+		final int blockStart = block * this.blockSize;
+		final InputStream is = new ByteArrayInputStream(this.blocks, this.blockOffsets[block], this.blockOffsets[block + 1] - this.blockOffsets[block]);
+		this.codec.decompress(is, this.buffer.array(), blockStart, Math.min(this.blockSize, this.BUNDLE_SIZE - blockStart));
+		this.decoded[block] = true;
+	}
+
+	public BundleInfo writeTo(final OutputStream stream, final String compressor, final int level, final int erasureLevel) throws IOException {
+		return this.writeTo(stream, compressor, level, erasureLevel, 0, null, 1);
 	}
 
 	/**
@@ -96,14 +163,31 @@ public class Bundle {
 	 * @param compressor
 	 * @param level
 	 * @param erasureLevel
+	 * @param blockSize if not 0 the payload is compressed in independent blocks of this size, so single chunks can be
+	 * read without decompressing the whole bundle
+	 * @param executor runs the compression of blocks, the caller takes part
+	 * @param threads the number of blocks compressed at once
 	 * @return
 	 * @throws IOException
 	 */
-	public BundleInfo writeTo(final OutputStream stream, final String compressor, final int level, final int erasureLevel) throws IOException {
+	public BundleInfo writeTo(final OutputStream stream, final String compressor, final int level, final int erasureLevel, final int blockSize, final Executor executor, final int threads) throws IOException {
+		final Codec codec = Codec.forWriting(compressor);
+		if(codec == null)
+			throw new IllegalArgumentException("Can't write bundles with " + compressor);
+
 		final BundleFileHeader.Builder headerBuilder = BundleFileHeader.newBuilder().setVersion(1).setCompressionMethod(compressor);
 		if(erasureLevel > 0)
 			headerBuilder.setErasureShards(erasureLevel);
 
+		// the header holds the block sizes, so the blocks are compressed first
+		final byte[][] compressedBlocks = blockSize > 0 ? this.compressBlocks(codec, level, blockSize, threads > 1 ? executor : null) : null;
+		if(compressedBlocks != null) {
+			headerBuilder.setBlockSize(blockSize);
+			for (final byte[] block : compressedBlocks) {
+				headerBuilder.addBlockLength(block.length);
+			}
+		}
+
 		final BundleInfo bundleInfo = this.getBundleInfo();
 
 		OutputStream tempStream;
@@ -123,17 +207,12 @@ public class Bundle {
 		as.writeChecksum(ByteOrder.LITTLE_ENDIAN);
 
 
-		switch (compressor) {
-		case "lzma":
-			final XZOutputStream os = new XZOutputStream(as, new LZMA2Options(level)); // we can't close this stream because it will close the parent stream too
-			os.write(this.buffer.array(), this.buffer.arrayOffset(), this.buffer.position() + this.buffer.arrayOffset());
-			os.finish();
-			break;
-		case "zero":
-			as.write(this.buffer.array(), this.buffer.arrayOffset(), this.buffer.position() + this.buffer.arrayOffset());
-			break;
-		default:
-			throw new IllegalArgumentException("Unknown compressor " + compressor);
+		if(compressedBlocks != null) {
+			for (final byte[] block : compressedBlocks) {
+				as.write(block);
+			}
+		} else {
+			codec.compress(this.buffer.array(), this.buffer.arrayOffset(), this.buffer.position(), level, as, executor, threads);
 		}
 
 		as.writeChecksum(ByteOrder.LITTLE_ENDIAN);
@@ -181,6 +260,22 @@ public class Bundle {
 		return bundleInfo;
 	}
 
+	private byte[][] compressBlocks(final Codec codec, final int level, final int blockSize, final Executor executor) throws IOException {
+		final int size = this.buffer.position();
+		final List<Callable<byte[]>> tasks = new ArrayList<>();
+
+		for (int offset = 0; offset < size; offset += blockSize) {
+			final int start = this.buffer.arrayOffset() + offset;
+			final int length = Math.min(blockSize, size - offset);
+			tasks.add(() -> {
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2);
+				codec.compress(this.buffer.array(), start, length, level, baos);
+				return baos.toByteArray();
+			});
+		}
+		return Codec.runAll(tasks, executor).toArray(new byte[0][]);
+	}
+
 	private BundleInfo getBundleInfo() {
 		final BundleInfo.Builder infoBuilder = BundleInfo.newBuilder();
 
@@ -194,6 +289,17 @@ public class Bundle {
 	}
 
 	public static Bundle readBundleFromFile(final Path file) throws IOException {
+		return Bundle.readBundleFromFile(file, null, null);
+	}
+
+	/**
+	 * Reads a bundle, if it is compressed in blocks only the blocks holding the given chunks are decompressed
+	 * and the others on their first use. The checksums are still verified over the whole file.
+	 *
+	 * @param needed the chunks to decompress, null for all
+	 * @param executor decompresses the blocks at once, null decompresses them on this thread
+	 */
+	public static Bundle readBundleFromFile(final Path file, final Collection<ChunkID> needed, final Executor executor) throws IOException {
 		final byte[] data = Files.readAllBytes(file);
 
 		Adler32InputStream is = new Adler32InputStream(new ByteArrayInputStream(data));
@@ -201,104 +307,169 @@ public class Bundle {
 		final BundleFileHeader header = BundleFileHeader.parseDelimitedFrom(is);
 
 		if(header.hasErasureShards() && header.getErasureShards() > 0) {
-			final ReedSolomon rs = new ReedSolomon(Bundle.ERASURE_BLOCKS - header.getErasureShards(), header.getErasureShards(), new OutputInputByteTableCodingLoop());
-
-			final int shardSize = (data.length - 1024) / Bundle.ERASURE_BLOCKS;
-			final int checkSumOffset = data.length - 1024;
-			final byte[][] shards = new byte[Bundle.ERASURE_BLOCKS][];
-			final boolean[] correct = new boolean[Bundle.ERASURE_BLOCKS];
-			final CRC32 crc = new CRC32();
-			boolean somethingToRepair = false;
+			final Adler32InputStream repaired = Bundle.repair(data, header, file);
+			if(repaired != null)
+				is = repaired;
+		}
 
-			for (int i = 0; i < Bundle.ERASURE_BLOCKS; i++) {
-				shards[i] = Arrays.copyOfRange(data, i * shardSize, (i + 1) * shardSize);
+		final BundleInfo info = BundleInfo.parseDelimitedFrom(is);
 
-				crc.reset();
-				crc.update(shards[i]);
+		if(!is.readChecksum(ByteOrder.LITTLE_ENDIAN))
+			throw new IOException("Checksum is invalid");
 
 
-				correct[i] =	data[checkSumOffset + i * 4] == (byte)(crc.getValue()       & 0xff) &&
-						data[checkSumOffset + i * 4 + 1] == (byte)(crc.getValue() >>  8 & 0xff) &&
-						data[checkSumOffset + i * 4 + 2] == (byte)(crc.getValue() >> 16 & 0xff) &&
-						data[checkSumOffset + i * 4 + 3] == (byte)(crc.getValue() >> 24 & 0xff);
-
-				if (!correct[i]) {
-					somethingToRepair = true;
-					System.err.println("Bundle Shard " + i + " corrupt!");
-				}
-			}
+		final List<ChunkID> ids = new ArrayList<>(info.getChunkRecordCount());
+		int dataSize = 0;
+		for(final ChunkRecord record : info.getChunkRecordList()) {
+			final int size = record.getSize();
+			ids.add(new ChunkID(record.getId(), size));
+			dataSize += size;
+		}
 
-			if(somethingToRepair) {
-				rs.decodeMissing(shards, correct, 0, shardSize);
+		final ByteBuffer buff = ByteBuffer.allocate(dataSize);
 
-				for (int i = 0; i < Bundle.ERASURE_BLOCKS; i++) {
-					crc.reset();
-					crc.update(shards[i]);
+		final Codec codec = Codec.forName(header.getCompressionMethod());
+		if(codec == null)
+			throw new IOException("Unknown compressor " + header.getCompressionMethod());
 
-					correct[i] =	data[checkSumOffset + i * 4] == (byte)(crc.getValue()       & 0xff) &&
-							data[checkSumOffset + i * 4 + 1] == (byte)(crc.getValue() >>  8 & 0xff) &&
-							data[checkSumOffset + i * 4 + 2] == (byte)(crc.getValue() >> 16 & 0xff) &&
-							data[checkSumOffset + i * 4 + 3] == (byte)(crc.getValue() >> 24 & 0xff);
+		if(header.getBlockSize() > 0) {
+			final int blockCount = header.getBlockLengthCount();
+			if(blockCount != (dataSize + header.getBlockSize() - 1) / header.getBlockSize())
+				throw new IOException("Block count doesn't match the payload size");
 
-					if (!correct[i]) {
-						throw new IOException("Bundle " + file + " shard " + i + " corrupt after reconstruction.");
+			final int[] offsets = new int[blockCount + 1];
+			for (int i = 0; i < blockCount; i++) {
+				offsets[i + 1] = offsets[i] + header.getBlockLength(i);
+			}
+			final byte[] blocks = new byte[offsets[blockCount]];
+			Codec.readFully(is, blocks, 0, blocks.length);
+
+			if(!is.readChecksum(ByteOrder.LITTLE_ENDIAN))
+				throw new IOException("Checksum is invalid");
+
+			final Bundle bundle = new Bundle(buff, ids, codec, header.getBlockSize(), blocks, offsets);
+			final boolean[] neededBlocks = new boolean[blockCount];
+			int offset = 0;
+			for (final ChunkID id : ids) {
+				if((needed == null || needed.contains(id)) && id.getSize() > 0) {
+					for (int i = offset / header.getBlockSize(); i <= (offset + id.getSize() - 1) / header.getBlockSize(); i++) {
+						neededBlocks[i] = true;
 					}
 				}
-				is = new Adler32InputStream(new MultiByteArrayInputStream(Arrays.copyOf(shards, Bundle.ERASURE_BLOCKS - header.getErasureShards())));
+				offset += id.getSize();
+			}
 
-				// we have to read the header again so the Stream is up
-				BundleFileHeader.parseDelimitedFrom(is);
+			final List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < blockCount; i++) {
+				final int block = i;
+				if(neededBlocks[block]) {
+					tasks.add(() -> {
+						bundle.decodeBlock(block);
+						return null;
+					});
+				}
 			}
+			// the bundle isn't shared yet, the blocks are distinct
+			Codec.runAll(tasks, executor);
+			return bundle;
 		}
 
-		final BundleInfo info = BundleInfo.parseDelimitedFrom(is);
+		codec.decompress(is, buff.array(), buff.arrayOffset(), dataSize, executor);
 
 		if(!is.readChecksum(ByteOrder.LITTLE_ENDIAN))
 			throw new IOException("Checksum is invalid");
 
+		return new Bundle(buff, ids);
+	}
 
-		final List<ChunkID> ids = new ArrayList<>(info.getChunkRecordCount());
-		int dataSize = 0;
-		for(final ChunkRecord record : info.getChunkRecordList()) {
-			final int size = record.getSize();
-			ids.add(new ChunkID(record.getId(), size));
-			dataSize += size;
+
+	/**
+	 * Reads only the chunk records at the start of a bundle file, the payload isn't read.
+	 * The whole file is only read if the records of an erasure coded bundle are damaged.
+	 */
+	public static BundleInfo readBundleInfo(final Path file) throws IOException {
+		BundleFileHeader header = null;
+		try(InputStream in = new BufferedInputStream(Files.newInputStream(file, StandardOpenOption.READ), 1 << 16)) {
+			final Adler32InputStream is = new Adler32InputStream(in);
+			header = BundleFileHeader.parseDelimitedFrom(is);
+			final BundleInfo info = BundleInfo.parseDelimitedFrom(is);
+			if(info == null)
+				throw new IOException("Unexpected EOF");
+
+			if(is.readChecksum(ByteOrder.LITTLE_ENDIAN))
+				return info;
+			if(header.getErasureShards() == 0)
+				throw new IOException("Checksum is invalid");
+		} catch (final IOException e) {
+			if(header == null || header.getErasureShards() == 0)
+				throw e;
 		}
 
-		final ByteBuffer buff = ByteBuffer.allocate(dataSize);
+		final Adler32InputStream is = Bundle.repair(Files.readAllBytes(file), header, file);
+		if(is == null)
+			throw new IOException("Checksum is invalid");
+
+		final BundleInfo info = BundleInfo.parseDelimitedFrom(is);
+		if(!is.readChecksum(ByteOrder.LITTLE_ENDIAN))
+			throw new IOException("Checksum is invalid");
+		return info;
+	}
 
-		final String compressor = header.getCompressionMethod();
+	/**
+	 * Checks the shards of an erasure coded bundle and reconstructs the damaged ones.
+	 *
+	 * @return a stream behind the header of the repaired data or null if all shards are fine
+	 */
+	private static Adler32InputStream repair(final byte[] data, final BundleFileHeader header, final Path file) throws IOException {
+		final ReedSolomon rs = new ReedSolomon(Bundle.ERASURE_BLOCKS - header.getErasureShards(), header.getErasureShards(), new OutputInputByteTableCodingLoop());
 
-		InputStream cis;
+		final int shardSize = (data.length - 1024) / Bundle.ERASURE_BLOCKS;
+		final int checkSumOffset = data.length - 1024;
+		final byte[][] shards = new byte[Bundle.ERASURE_BLOCKS][];
+		final boolean[] correct = new boolean[Bundle.ERASURE_BLOCKS];
+		final CRC32 crc = new CRC32();
+		boolean somethingToRepair = false;
 
-		switch (compressor) {
-		case "lzma":
-			cis = new SingleXZInputStream(is);
+		for (int i = 0; i < Bundle.ERASURE_BLOCKS; i++) {
+			shards[i] = Arrays.copyOfRange(data, i * shardSize, (i + 1) * shardSize);
+
+			crc.reset();
+			crc.update(shards[i]);
 
-			break;
-		case "zero":
-			cis = is;
-			break;
-		default:
-			throw new IOException("Unknown compressor " + compressor);
-		}
 
-		while(buff.hasRemaining()) {
-			final int readed = cis.read(buff.array(), buff.position() + buff.arrayOffset(), buff.remaining());
-			if(readed == -1)
-				throw new IOException("Short read from data");
-			buff.position(buff.position() + readed);
+			correct[i] =	data[checkSumOffset + i * 4] == (byte)(crc.getValue()       & 0xff) &&
+					data[checkSumOffset + i * 4 + 1] == (byte)(crc.getValue() >>  8 & 0xff) &&
+					data[checkSumOffset + i * 4 + 2] == (byte)(crc.getValue() >> 16 & 0xff) &&
+					data[checkSumOffset + i * 4 + 3] == (byte)(crc.getValue() >> 24 & 0xff);
+
+			if (!correct[i]) {
+				somethingToRepair = true;
+				System.err.println("Bundle Shard " + i + " corrupt!");
+			}
 		}
 
-		if(compressor.equals("lzma"))
-			if(cis.read() != -1)
-				throw new IOException("Unknown data at the end of lzma stream");
+		if(somethingToRepair) {
+			rs.decodeMissing(shards, correct, 0, shardSize);
+
+			for (int i = 0; i < Bundle.ERASURE_BLOCKS; i++) {
+				crc.reset();
+				crc.update(shards[i]);
 
+				correct[i] =	data[checkSumOffset + i * 4] == (byte)(crc.getValue()       & 0xff) &&
+						data[checkSumOffset + i * 4 + 1] == (byte)(crc.getValue() >>  8 & 0xff) &&
+						data[checkSumOffset + i * 4 + 2] == (byte)(crc.getValue() >> 16 & 0xff) &&
+						data[checkSumOffset + i * 4 + 3] == (byte)(crc.getValue() >> 24 & 0xff);
 
-		if(!is.readChecksum(ByteOrder.LITTLE_ENDIAN))
-			throw new IOException("Checksum is invalid");
+				if (!correct[i]) {
+					throw new IOException("Bundle " + file + " shard " + i + " corrupt after reconstruction.");
+				}
+			}
+			final Adler32InputStream is = new Adler32InputStream(new MultiByteArrayInputStream(Arrays.copyOf(shards, Bundle.ERASURE_BLOCKS - header.getErasureShards())));
 
-		buff.flip();
-		return new Bundle(buff, ids);
+			// we have to read the header again so the Stream is up
+			BundleFileHeader.parseDelimitedFrom(is);
+			return is;
+		}
+		return null;
 	}
 }
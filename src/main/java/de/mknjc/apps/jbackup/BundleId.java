@@ -0,0 +1,45 @@
+package de.mknjc.apps.jbackup;
+
+/**
+ * A bundle of the store with its dense number from the {@link BundleRegistry}.
+ *
+ * Equality only compares the number, so ids of different registries must not be mixed.
+ * The 24 byte id is only needed to find the bundle file.
+ */
+public final class BundleId {
+	private final int number;
+	private final byte[] id;
+
+	BundleId(final int number, final byte[] id) {
+		this.number = number;
+		this.id = id;
+	}
+
+	public int getNumber() {
+		return this.number;
+	}
+
+	public byte[] getId() {
+		return this.id;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if(obj == this)
+			return true;
+
+		if(obj == null || !(obj instanceof BundleId))
+			return false;
+
+		return this.number == ((BundleId)obj).number;
+	}
+	@Override
+	public int hashCode() {
+		return this.number;
+	}
+
+	@Override
+	public String toString() {
+		return ZbackupStore.bundleString(this.id);
+	}
+}
@@ -0,0 +1,47 @@
+package de.mknjc.apps.jbackup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns every bundle a dense number in the order the bundles are registered.
+ *
+ * Registering is synchronized, the index readers call it once per bundle. Lookups by number don't lock:
+ * a thread only knows a number after it was registered, the index cache it got the number from publishes it.
+ */
+public class BundleRegistry {
+	private volatile BundleId[] bundles = new BundleId[1024];
+	private int count;
+	private final Map<ByteBuffer, BundleId> ids = new HashMap<>();
+
+	/**
+	 * @return the bundle with the id, a new number is assigned if the id is unknown
+	 */
+	public synchronized BundleId register(final byte[] id) {
+		final ByteBuffer key = ByteBuffer.wrap(id);
+		BundleId bundle = this.ids.get(key);
+		if(bundle != null)
+			return bundle;
+
+		if(this.count == this.bundles.length)
+			this.bundles = Arrays.copyOf(this.bundles, this.count * 2);
+
+		bundle = new BundleId(this.count, id);
+		this.bundles[this.count++] = bundle;
+		this.ids.put(key, bundle);
+		return bundle;
+	}
+
+	/**
+	 * @return the bundle with the number or null for a negative number
+	 */
+	public BundleId get(final int number) {
+		return number < 0 ? null : this.bundles[number];
+	}
+
+	public synchronized int size() {
+		return this.count;
+	}
+}
@@ -0,0 +1,566 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Index cache which keeps the chunk ids off heap in primitive struct-of-arrays slabs.
+ *
+ * The table uses linear probing, the home slot of a chunk are the top bits of its rolling hash.
+ * The rolling hash column doubles as occupancy marker, so {@link #hasChunk(long)} only touches one
+ * array. A rolling hash of 0 marks an empty slot, the (very unlikely) chunks with that hash are kept
+ * in a small list on the heap. ChunkID objects are only created when a lookup hits.
+ *
+ * The slabs are little endian so the whole table can be written to a file and mapped back in
+ * with {@link #map(FileChannel, long, BundleRegistry)}.
+ *
+ * When {@link #addChunk(ChunkID)} fills the table over 3/4 a twice as large table gets allocated and every
+ * following insert moves {@link #MIGRATION_STEP} slots of the old table over, lookups probe both tables meanwhile.
+ * The slabs of that table are only allocated on their first write, so a single insert never zeroes more than one
+ * slab. The bulk operations used while loading the index grow the table in one go instead.
+ */
+public class ByteBufferIndexCache implements IndexCache {
+	private static final int MIN_BITS = 16;
+	private static final int MAX_BITS = 40;
+
+	/** slots per slab, a long slab is then 128MB */
+	private static final int SLAB_BITS = 24;
+	private static final long SLAB_MASK = (1L << SLAB_BITS) - 1;
+
+	/** old slots moved per insert, the migration has to be done before the new table is 3/4 full */
+	private static final int MIGRATION_STEP = 16;
+
+	private ByteBuffer[] rollingHashes;
+	private ByteBuffer[] hashes0;
+	private ByteBuffer[] hashes1;
+	private ByteBuffer[] sizes;
+	private ByteBuffer[] bundles;
+
+	private int bits;
+	private long mask;
+	private long chunkCount;
+
+	/** the previous table while it is migrated, never written */
+	private ByteBuffer[] oldRollingHashes;
+	private ByteBuffer[] oldHashes0;
+	private ByteBuffer[] oldHashes1;
+	private ByteBuffer[] oldSizes;
+	private ByteBuffer[] oldBundles;
+	private int oldBits;
+	private long migrated;
+
+	private final List<ChunkID> zeroHashChunks = new ArrayList<>();
+
+	/** the bundles are stored by their number */
+	private final BundleRegistry bundleRegistry;
+
+	public ByteBufferIndexCache(final long expectedChunks, final BundleRegistry bundles) {
+		this.bundleRegistry = bundles;
+		int i;
+		for(i = ByteBufferIndexCache.MIN_BITS; i < ByteBufferIndexCache.MAX_BITS; i++) {
+			if((1L << i) * 3 / 4 > expectedChunks) {
+				break;
+			}
+		}
+		this.allocate(i, false);
+	}
+
+	private ByteBufferIndexCache(final BundleRegistry bundles) {
+		this.bundleRegistry = bundles;
+	}
+
+	@Override
+	public boolean hasChunk(final long rollingHash) {
+		if(rollingHash == 0)
+			return !this.zeroHashChunks.isEmpty();
+
+		if(ByteBufferIndexCache.find(this.rollingHashes, this.hashes0, this.hashes1, this.bits, rollingHash, 0, 0, false) >= 0)
+			return true;
+		return this.oldRollingHashes != null && ByteBufferIndexCache.find(this.oldRollingHashes, this.oldHashes0, this.oldHashes1, this.oldBits, rollingHash, 0, 0, false) >= 0;
+	}
+
+	@Override
+	public ChunkID hasChunkWithHash(final long rollingHash, final long shaHash0, final long shaHash1) {
+		if(rollingHash == 0) {
+			for (final ChunkID id : this.zeroHashChunks) {
+				if(id.getHash0() == shaHash0 && id.getHash1() == shaHash1)
+					return id;
+			}
+			return null;
+		}
+
+		long slot = ByteBufferIndexCache.find(this.rollingHashes, this.hashes0, this.hashes1, this.bits, rollingHash, shaHash0, shaHash1, true);
+		if(slot >= 0)
+			return this.chunkID(this.sizes, this.bundles, slot, rollingHash, shaHash0, shaHash1);
+
+		if(this.oldRollingHashes == null)
+			return null;
+		slot = ByteBufferIndexCache.find(this.oldRollingHashes, this.oldHashes0, this.oldHashes1, this.oldBits, rollingHash, shaHash0, shaHash1, true);
+		return slot < 0 ? null : this.chunkID(this.oldSizes, this.oldBundles, slot, rollingHash, shaHash0, shaHash1);
+	}
+
+	@Override
+	public void addChunk(final ChunkID id) {
+		this.addChunk(id.getRollingHash(), id.getHash0(), id.getHash1(), id.getSize(), id.getBundle() == null ? -1 : id.getBundle().getNumber());
+	}
+
+	void addChunk(final long rollingHash, final long hash0, final long hash1, final int size, final int bundle) {
+		if(rollingHash == 0) {
+			this.zeroHashChunks.add(new ChunkID(rollingHash, size, hash0, hash1, this.bundleRegistry.get(bundle)));
+			this.chunkCount++;
+			return;
+		}
+
+		this.insert(rollingHash, hash0, hash1, size, bundle);
+		this.chunkCount++;
+
+		if(this.oldRollingHashes != null) {
+			this.migrate(ByteBufferIndexCache.MIGRATION_STEP);
+		} else if(this.chunkCount > (1L << this.bits) * 3 / 4 && this.bits < ByteBufferIndexCache.MAX_BITS) {
+			System.err.println("Chunk resize " + this.chunkCount);
+			this.oldRollingHashes = this.rollingHashes;
+			this.oldHashes0 = this.hashes0;
+			this.oldHashes1 = this.hashes1;
+			this.oldSizes = this.sizes;
+			this.oldBundles = this.bundles;
+			this.oldBits = this.bits;
+			this.migrated = 0;
+
+			this.allocate(this.bits + 1, true);
+		}
+	}
+
+	@Override
+	public long count() {
+		return this.chunkCount;
+	}
+
+	@Override
+	public void forEachRollingHash(final LongConsumer consumer) {
+		for (final ChunkID id : this.zeroHashChunks) {
+			consumer.accept(id.getRollingHash());
+		}
+		this.forEachRollingHash(0, 1L << this.bits, consumer);
+
+		if(this.oldRollingHashes != null) {
+			for(long slot = this.migrated; slot < 1L << this.oldBits; slot++) {
+				final long rollingHash = ByteBufferIndexCache.getLong(this.oldRollingHashes, slot);
+				if(rollingHash != 0)
+					consumer.accept(rollingHash);
+			}
+		}
+	}
+
+	/**
+	 * Calls the consumer for all chunks stored in the slot range, the chunks with a zero rolling hash are skipped.
+	 * Must not be called while the table grows incrementally, see {@link #ensureCapacity(long)}.
+	 */
+	void forEachRollingHash(final long fromSlot, final long toSlot, final LongConsumer consumer) {
+		for(long slot = fromSlot; slot < toSlot; slot++) {
+			final long rollingHash = ByteBufferIndexCache.getLong(this.rollingHashes, slot);
+			if(rollingHash != 0)
+				consumer.accept(rollingHash);
+		}
+	}
+
+	boolean hasZeroHashChunks() {
+		return !this.zeroHashChunks.isEmpty();
+	}
+
+	/**
+	 * Grows the table so the given number of chunks fits in without a resize.
+	 * A running incremental migration gets finished first.
+	 */
+	void ensureCapacity(final long chunks) {
+		this.finishMigration();
+		// concurrent inserts must not allocate slabs
+		this.allocateMissingSlabs();
+
+		int newBits = this.bits;
+		while((1L << newBits) * 3 / 4 <= chunks && newBits < ByteBufferIndexCache.MAX_BITS) {
+			newBits++;
+		}
+		if(newBits != this.bits)
+			this.resize(newBits);
+	}
+
+	int getBits() {
+		return this.bits;
+	}
+
+	/**
+	 * Inserts a chunk without growing the table or counting it. Threads may insert concurrently as long as
+	 * each thread only inserts chunks which home slot lies in its own partition.
+	 *
+	 * When chunks are inserted in ascending rolling hash order the slot of the previous chunk can be passed as hint,
+	 * all slots from the home slot up to the hint are occupied then and the probing starts behind the hint.
+	 *
+	 * @param hint the slot of the previously inserted chunk or -1
+	 * @param partitionEnd the first slot after the partition of the chunk
+	 * @return the slot of the chunk or -1 if the probing sequence left the partition, the chunk has to be inserted with {@link #addChunk(long, long, long, int, int)} then
+	 */
+	long insertInPartition(final long rollingHash, final long hash0, final long hash1, final int size, final int bundle, final long hint, final long partitionEnd) {
+		long slot = Math.max(this.homeSlot(rollingHash), hint + 1);
+		if(slot >= partitionEnd)
+			return -1;
+
+		while(ByteBufferIndexCache.getLong(this.rollingHashes, slot) != 0) {
+			slot++;
+			if(slot == partitionEnd)
+				return -1;
+		}
+
+		ByteBufferIndexCache.putLong(this.rollingHashes, slot, rollingHash);
+		ByteBufferIndexCache.putLong(this.hashes0, slot, hash0);
+		ByteBufferIndexCache.putLong(this.hashes1, slot, hash1);
+		ByteBufferIndexCache.putInt(this.sizes, slot, size);
+		ByteBufferIndexCache.putInt(this.bundles, slot, bundle);
+		return slot;
+	}
+
+	void addToCount(final long chunks) {
+		this.chunkCount += chunks;
+	}
+
+	/**
+	 * Sets the bundle of a chunk which was added without one.
+	 */
+	void setBundle(final ChunkID id, final int bundle) {
+		this.finishMigration();
+
+		if(id.getRollingHash() == 0) {
+			for (int i = 0; i < this.zeroHashChunks.size(); i++) {
+				final ChunkID chunk = this.zeroHashChunks.get(i);
+				if(chunk.getHash0() == id.getHash0() && chunk.getHash1() == id.getHash1())
+					this.zeroHashChunks.set(i, new ChunkID(0, chunk.getSize(), chunk.getHash0(), chunk.getHash1(), this.bundleRegistry.get(bundle)));
+			}
+			return;
+		}
+
+		final long slot = ByteBufferIndexCache.find(this.rollingHashes, this.hashes0, this.hashes1, this.bits, id.getRollingHash(), id.getHash0(), id.getHash1(), true);
+		if(slot >= 0)
+			ByteBufferIndexCache.putInt(this.bundles, slot, bundle);
+	}
+
+	/**
+	 * Writes the table to the channel at its current position.
+	 *
+	 * @param slabChecksum gets the bytes of the slabs
+	 */
+	void writeTo(final FileChannel channel, final CRC32 slabChecksum) throws IOException {
+		this.finishMigration();
+		this.allocateMissingSlabs();
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream(bytes);
+
+		header.writeInt(this.bits);
+		header.writeLong(this.chunkCount);
+
+		header.writeInt(this.zeroHashChunks.size());
+		for (final ChunkID id : this.zeroHashChunks) {
+			header.writeLong(id.getHash0());
+			header.writeLong(id.getHash1());
+			header.writeInt(id.getSize());
+			header.writeInt(id.getBundle() == null ? -1 : id.getBundle().getNumber());
+		}
+
+		final int bundleCount = this.bundleRegistry.size();
+		header.writeInt(bundleCount);
+		for (int i = 0; i < bundleCount; i++) {
+			final byte[] id = this.bundleRegistry.get(i).getId();
+			header.writeShort(id.length);
+			header.write(id);
+		}
+		// keep the slabs 8 byte aligned
+		while(bytes.size() % 8 != 0) {
+			header.write(0);
+		}
+		header.flush();
+
+		final ByteBuffer headerBuffer = ByteBuffer.allocate(8 + bytes.size());
+		headerBuffer.putLong(bytes.size()).put(bytes.toByteArray()).flip();
+		ByteBufferIndexCache.writeFully(channel, headerBuffer);
+
+		for (final ByteBuffer[] column : new ByteBuffer[][] { this.rollingHashes, this.hashes0, this.hashes1, this.sizes, this.bundles }) {
+			for (final ByteBuffer slab : column) {
+				final ByteBuffer b = slab.duplicate();
+				b.clear();
+				slabChecksum.update(b);
+				b.clear();
+				ByteBufferIndexCache.writeFully(channel, b);
+			}
+		}
+	}
+
+	/**
+	 * Maps a table written with {@link #writeTo(FileChannel, CRC32)} copy on write, so added chunks never reach the file.
+	 * The stored bundle numbers are kept, so the registry has to be empty.
+	 */
+	static ByteBufferIndexCache map(final FileChannel channel, long position, final BundleRegistry bundles) throws IOException {
+		if(bundles.size() != 0)
+			throw new IllegalStateException("Bundles were registered before the index table got mapped");
+
+		final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+		ByteBufferIndexCache.readFully(channel, lengthBuffer, position);
+		final long headerLength = lengthBuffer.getLong(0);
+		if(headerLength < 0 || headerLength > channel.size() - position - 8)
+			throw new IOException("Invalid index table header length " + headerLength);
+
+		final ByteBuffer headerBuffer = ByteBuffer.allocate((int)headerLength);
+		ByteBufferIndexCache.readFully(channel, headerBuffer, position + 8);
+		final DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBuffer.array()));
+
+		final ByteBufferIndexCache cache = new ByteBufferIndexCache(bundles);
+		final int bits = header.readInt();
+		if(bits < ByteBufferIndexCache.MIN_BITS || bits > ByteBufferIndexCache.MAX_BITS)
+			throw new IOException("Invalid index table size " + bits);
+		cache.bits = bits;
+		cache.mask = (1L << bits) - 1;
+		cache.chunkCount = header.readLong();
+
+		final int zeroHashChunks = header.readInt();
+		final int[] zeroHashBundles = new int[zeroHashChunks];
+		final long[][] zeroHashValues = new long[zeroHashChunks][3];
+		for (int i = 0; i < zeroHashChunks; i++) {
+			zeroHashValues[i][0] = header.readLong();
+			zeroHashValues[i][1] = header.readLong();
+			zeroHashValues[i][2] = header.readInt();
+			zeroHashBundles[i] = header.readInt();
+		}
+
+		final int bundleCount = header.readInt();
+		for (int i = 0; i < bundleCount; i++) {
+			final byte[] id = new byte[header.readShort()];
+			header.readFully(id);
+			bundles.register(id);
+		}
+
+		for (int i = 0; i < zeroHashChunks; i++) {
+			cache.zeroHashChunks.add(new ChunkID(0, (int)zeroHashValues[i][2], zeroHashValues[i][0], zeroHashValues[i][1], bundles.get(zeroHashBundles[i])));
+		}
+
+		position += 8 + headerLength;
+		if(channel.size() - position < (1L << bits) * (3 * Long.BYTES + 2 * Integer.BYTES))
+			throw new IOException("Index table is truncated");
+
+		cache.rollingHashes = ByteBufferIndexCache.mapSlabs(channel, position, bits, Long.BYTES);
+		position += (1L << bits) * Long.BYTES;
+		cache.hashes0 = ByteBufferIndexCache.mapSlabs(channel, position, bits, Long.BYTES);
+		position += (1L << bits) * Long.BYTES;
+		cache.hashes1 = ByteBufferIndexCache.mapSlabs(channel, position, bits, Long.BYTES);
+		position += (1L << bits) * Long.BYTES;
+		cache.sizes = ByteBufferIndexCache.mapSlabs(channel, position, bits, Integer.BYTES);
+		position += (1L << bits) * Integer.BYTES;
+		cache.bundles = ByteBufferIndexCache.mapSlabs(channel, position, bits, Integer.BYTES);
+
+		return cache;
+	}
+
+	BundleRegistry getBundleRegistry() {
+		return this.bundleRegistry;
+	}
+
+	private long homeSlot(final long rollingHash) {
+		return rollingHash >>> (64 - this.bits);
+	}
+
+	/**
+	 * @return the slot of the chunk or -1
+	 */
+	private static long find(final ByteBuffer[] rollingHashes, final ByteBuffer[] hashes0, final ByteBuffer[] hashes1, final int bits,
+			final long rollingHash, final long hash0, final long hash1, final boolean compareHash) {
+		final long mask = (1L << bits) - 1;
+		long slot = rollingHash >>> (64 - bits);
+		long stored;
+		while((stored = ByteBufferIndexCache.getLong(rollingHashes, slot)) != 0) {
+			if(stored == rollingHash && (!compareHash
+					|| (ByteBufferIndexCache.getLong(hashes0, slot) == hash0
+					&& ByteBufferIndexCache.getLong(hashes1, slot) == hash1)))
+				return slot;
+
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private ChunkID chunkID(final ByteBuffer[] sizes, final ByteBuffer[] bundles, final long slot, final long rollingHash, final long hash0, final long hash1) {
+		final int bundle = ByteBufferIndexCache.getInt(bundles, slot);
+		return new ChunkID(rollingHash, ByteBufferIndexCache.getInt(sizes, slot), hash0, hash1, this.bundleRegistry.get(bundle));
+	}
+
+	/**
+	 * Moves up to the given number of slots from the old table into the current one.
+	 */
+	private void migrate(final long slots) {
+		final long oldLength = 1L << this.oldBits;
+		final long end = Math.min(this.migrated + slots, oldLength);
+		for(long slot = this.migrated; slot < end; slot++) {
+			final long rollingHash = ByteBufferIndexCache.getLong(this.oldRollingHashes, slot);
+			if(rollingHash == 0)
+				continue;
+
+			this.insert(rollingHash,
+					ByteBufferIndexCache.getLong(this.oldHashes0, slot),
+					ByteBufferIndexCache.getLong(this.oldHashes1, slot),
+					ByteBufferIndexCache.getInt(this.oldSizes, slot),
+					ByteBufferIndexCache.getInt(this.oldBundles, slot));
+		}
+		this.migrated = end;
+
+		if(end == oldLength) {
+			this.oldRollingHashes = null;
+			this.oldHashes0 = null;
+			this.oldHashes1 = null;
+			this.oldSizes = null;
+			this.oldBundles = null;
+		}
+	}
+
+	private void finishMigration() {
+		if(this.oldRollingHashes != null)
+			this.migrate(1L << this.oldBits);
+	}
+
+	private void insert(final long rollingHash, final long hash0, final long hash1, final int size, final int bundle) {
+		long slot = this.homeSlot(rollingHash);
+		while(ByteBufferIndexCache.getLong(this.rollingHashes, slot) != 0) {
+			slot = (slot + 1) & this.mask;
+		}
+
+		ByteBufferIndexCache.putLong(this.rollingHashes, slot, rollingHash);
+		ByteBufferIndexCache.putLong(this.hashes0, slot, hash0);
+		ByteBufferIndexCache.putLong(this.hashes1, slot, hash1);
+		ByteBufferIndexCache.putInt(this.sizes, slot, size);
+		ByteBufferIndexCache.putInt(this.bundles, slot, bundle);
+	}
+
+	private void resize(final int newBits) {
+		final ByteBuffer[] oldRollingHashes = this.rollingHashes;
+		final ByteBuffer[] oldHashes0 = this.hashes0;
+		final ByteBuffer[] oldHashes1 = this.hashes1;
+		final ByteBuffer[] oldSizes = this.sizes;
+		final ByteBuffer[] oldBundles = this.bundles;
+		final long oldLength = 1L << this.bits;
+
+		this.allocate(newBits, false);
+
+		for(long slot = 0; slot < oldLength; slot++) {
+			final long rollingHash = ByteBufferIndexCache.getLong(oldRollingHashes, slot);
+			if(rollingHash == 0)
+				continue;
+
+			this.insert(rollingHash,
+					ByteBufferIndexCache.getLong(oldHashes0, slot),
+					ByteBufferIndexCache.getLong(oldHashes1, slot),
+					ByteBufferIndexCache.getInt(oldSizes, slot),
+					ByteBufferIndexCache.getInt(oldBundles, slot));
+		}
+	}
+
+	/**
+	 * @param lazy leave the slabs to {@link #putLong(ByteBuffer[], long, long)} and {@link #putInt(ByteBuffer[], long, int)},
+	 * a table which fits into one slab is always allocated at once
+	 */
+	private void allocate(final int bits, final boolean lazy) {
+		this.bits = bits;
+		this.mask = (1L << bits) - 1;
+
+		this.rollingHashes = ByteBufferIndexCache.allocateSlabs(bits, Long.BYTES, lazy);
+		this.hashes0 = ByteBufferIndexCache.allocateSlabs(bits, Long.BYTES, lazy);
+		this.hashes1 = ByteBufferIndexCache.allocateSlabs(bits, Long.BYTES, lazy);
+		this.sizes = ByteBufferIndexCache.allocateSlabs(bits, Integer.BYTES, lazy);
+		this.bundles = ByteBufferIndexCache.allocateSlabs(bits, Integer.BYTES, lazy);
+	}
+
+	private void allocateMissingSlabs() {
+		for (final ByteBuffer[] column : new ByteBuffer[][] { this.rollingHashes, this.hashes0, this.hashes1 }) {
+			for (int i = 0; i < column.length; i++) {
+				if(column[i] == null)
+					column[i] = ByteBufferIndexCache.allocateSlab(1 << ByteBufferIndexCache.SLAB_BITS, Long.BYTES);
+			}
+		}
+		for (final ByteBuffer[] column : new ByteBuffer[][] { this.sizes, this.bundles }) {
+			for (int i = 0; i < column.length; i++) {
+				if(column[i] == null)
+					column[i] = ByteBufferIndexCache.allocateSlab(1 << ByteBufferIndexCache.SLAB_BITS, Integer.BYTES);
+			}
+		}
+	}
+
+	private static ByteBuffer[] allocateSlabs(final int bits, final int width, final boolean lazy) {
+		final int slabCount = bits > ByteBufferIndexCache.SLAB_BITS ? 1 << (bits - ByteBufferIndexCache.SLAB_BITS) : 1;
+		final int slabSlots = 1 << Math.min(bits, ByteBufferIndexCache.SLAB_BITS);
+
+		final ByteBuffer[] slabs = new ByteBuffer[slabCount];
+		if(lazy && slabCount > 1)
+			return slabs;
+
+		for (int i = 0; i < slabCount; i++) {
+			slabs[i] = ByteBufferIndexCache.allocateSlab(slabSlots, width);
+		}
+		return slabs;
+	}
+
+	private static ByteBuffer allocateSlab(final int slots, final int width) {
+		return ByteBuffer.allocateDirect(slots * width).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer[] mapSlabs(final FileChannel channel, final long position, final int bits, final int width) throws IOException {
+		final int slabCount = bits > ByteBufferIndexCache.SLAB_BITS ? 1 << (bits - ByteBufferIndexCache.SLAB_BITS) : 1;
+		final int slabSlots = 1 << Math.min(bits, ByteBufferIndexCache.SLAB_BITS);
+
+		final ByteBuffer[] slabs = new ByteBuffer[slabCount];
+		for (int i = 0; i < slabCount; i++) {
+			slabs[i] = channel.map(MapMode.PRIVATE, position + (long)i * slabSlots * width, (long)slabSlots * width).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return slabs;
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) == -1)
+				throw new IOException("Unexpected EOF");
+		}
+	}
+
+	// a missing slab reads as zeros
+
+	private static long getLong(final ByteBuffer[] slabs, final long slot) {
+		final ByteBuffer slab = slabs[(int)(slot >>> ByteBufferIndexCache.SLAB_BITS)];
+		return slab == null ? 0 : slab.getLong((int)(slot & ByteBufferIndexCache.SLAB_MASK) << 3);
+	}
+	private static int getInt(final ByteBuffer[] slabs, final long slot) {
+		final ByteBuffer slab = slabs[(int)(slot >>> ByteBufferIndexCache.SLAB_BITS)];
+		return slab == null ? 0 : slab.getInt((int)(slot & ByteBufferIndexCache.SLAB_MASK) << 2);
+	}
+	private static void putLong(final ByteBuffer[] slabs, final long slot, final long value) {
+		final int index = (int)(slot >>> ByteBufferIndexCache.SLAB_BITS);
+		if(slabs[index] == null)
+			slabs[index] = ByteBufferIndexCache.allocateSlab(1 << ByteBufferIndexCache.SLAB_BITS, Long.BYTES);
+		slabs[index].putLong((int)(slot & ByteBufferIndexCache.SLAB_MASK) << 3, value);
+	}
+	private static void putInt(final ByteBuffer[] slabs, final long slot, final int value) {
+		final int index = (int)(slot >>> ByteBufferIndexCache.SLAB_BITS);
+		if(slabs[index] == null)
+			slabs[index] = ByteBufferIndexCache.allocateSlab(1 << ByteBufferIndexCache.SLAB_BITS, Integer.BYTES);
+		slabs[index].putInt((int)(slot & ByteBufferIndexCache.SLAB_MASK) << 2, value);
+	}
+}
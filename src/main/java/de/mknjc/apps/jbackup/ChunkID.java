@@ -11,24 +11,24 @@ public final class ChunkID {
 	private final int size;
 	private final long hash0;
 	private final long hash1;
-	private final byte[] bundleID;
+	private final BundleId bundle;
 
 
-	public ChunkID(final long rollingHash, final int size, final byte[] hash, final byte[] bundleID) {
+	public ChunkID(final long rollingHash, final int size, final byte[] hash, final BundleId bundle) {
 		this.rollingHash = rollingHash;
 		this.size = size;
 
 		this.hash0 = ChunkID.makeLongFromArray(hash, 0);
 		this.hash1 = ChunkID.makeLongFromArray(hash, 8);
 
-		this.bundleID = bundleID;
+		this.bundle = bundle;
 	}
-	public ChunkID(final long rollingHash, final int size, final long hash0, final long hash1, final byte[] bundleID) {
+	public ChunkID(final long rollingHash, final int size, final long hash0, final long hash1, final BundleId bundle) {
 		this.rollingHash = rollingHash;
 		this.size = size;
 		this.hash0 = hash0;
 		this.hash1 = hash1;
-		this.bundleID = bundleID;
+		this.bundle = bundle;
 	}
 	public ChunkID(final ByteString id, final int size) {
 		final ByteBuffer bb = id.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
@@ -38,7 +38,7 @@ public final class ChunkID {
 
 		this.size = size;
 
-		this.bundleID = null;
+		this.bundle = null;
 	}
 
 	public long getRollingHash() {
@@ -54,8 +54,11 @@ public final class ChunkID {
 		return this.hash1;
 	}
 
-	public byte[] getBundleID() {
-		return this.bundleID;
+	/**
+	 * @return the bundle the chunk is stored in or null for chunks without a bundle yet
+	 */
+	public BundleId getBundle() {
+		return this.bundle;
 	}
 
 	@Override
@@ -0,0 +1,29 @@
+package de.mknjc.apps.jbackup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts a stream of bytes into chunks.
+ *
+ * A chunker only looks at the data, so insertions in the input only change the chunks around them.
+ * Every chunk is probed once in the index, unlike the rolling match of {@link BackupCreator} which probes
+ * the index at every byte.
+ *
+ * The chunks may be cut by several threads at once, so implementations must not keep state between calls.
+ */
+public interface Chunker {
+	/**
+	 * Finds the end of the chunk starting at offset. The caller passes at least {@link #getMaxSize()} bytes
+	 * unless the input ends earlier.
+	 *
+	 * @return the length of the chunk, at most length and {@link #getMaxSize()}
+	 */
+	int nextChunk(byte[] data, int offset, int length);
+
+	/**
+	 * Like {@link #nextChunk(byte[], int, int)} on a buffer, for a mapped input. The buffer position is not used.
+	 */
+	int nextChunk(ByteBuffer data, int offset, int length);
+
+	int getMaxSize();
+}
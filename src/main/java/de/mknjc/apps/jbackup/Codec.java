@@ -0,0 +1,139 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A compression method of the bundle payload, selected by the compression_method of the bundle file header.
+ */
+interface Codec {
+	/** stores the payload as it is */
+	Codec ZERO = new Codec() {
+		@Override
+		public void compress(final byte[] data, final int offset, final int length, final int level, final OutputStream os) throws IOException {
+			os.write(data, offset, length);
+		}
+
+		@Override
+		public void decompress(final InputStream is, final byte[] dst, final int offset, final int length) throws IOException {
+			Codec.readFully(is, dst, offset, length);
+		}
+	};
+
+	/**
+	 * Writes data[offset, offset + length) as one compressed stream.
+	 *
+	 * @param level the lzma.compression_level, codecs without levels ignore it
+	 */
+	void compress(byte[] data, int offset, int length, int level, OutputStream os) throws IOException;
+
+	/**
+	 * Reads one compressed stream of exactly length bytes into dst, nothing behind the stream is read.
+	 */
+	void decompress(InputStream is, byte[] dst, int offset, int length) throws IOException;
+
+	/**
+	 * Like {@link #compress(byte[], int, int, int, OutputStream)}, a codec which can split the stream into blocks
+	 * compresses up to threads blocks at once on the executor.
+	 */
+	default void compress(final byte[] data, final int offset, final int length, final int level, final OutputStream os, final Executor executor, final int threads) throws IOException {
+		this.compress(data, offset, length, level, os);
+	}
+
+	/**
+	 * Like {@link #decompress(InputStream, byte[], int, int)}, the blocks of a split stream are decompressed at once
+	 * on the executor.
+	 */
+	default void decompress(final InputStream is, final byte[] dst, final int offset, final int length, final Executor executor) throws IOException {
+		this.decompress(is, dst, offset, length);
+	}
+
+	/**
+	 * @return the codec of a compression method or null if it is unknown
+	 */
+	static Codec forName(final String name) {
+		switch (name) {
+		case "lzma":
+			return LzmaCodec.INSTANCE;
+		case "lzo1x_1":
+			return Lzo1xCodec.INSTANCE;
+		case "lz4":
+			return Lz4Codec.INSTANCE;
+		case "zero":
+			return Codec.ZERO;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * The lzo1x_1 bundles can only be read until their framing is verified against zbackup, verify-lzo.sh turns
+	 * writing them on with -Djbackup.unverified-lzo=true.
+	 *
+	 * @return the codec new bundles can be written with or null if it is unknown or read only
+	 */
+	static Codec forWriting(final String name) {
+		if(name.equals("lzo1x_1") && !Boolean.getBoolean("jbackup.unverified-lzo"))
+			return null;
+		return Codec.forName(name);
+	}
+
+	/**
+	 * Runs the tasks on the executor, or on this thread if it is null, and waits for them. The tasks which haven't
+	 * started yet are run by the caller, so this can't deadlock on a thread of the executor.
+	 */
+	static <T> List<T> runAll(final List<Callable<T>> tasks, final Executor executor) throws IOException {
+		final List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+		for (final Callable<T> task : tasks) {
+			final FutureTask<T> future = new FutureTask<>(task);
+			// the first one is left for the caller
+			if(executor != null && !futures.isEmpty()) {
+				try {
+					executor.execute(future);
+				} catch (final RejectedExecutionException e) {
+					// run by the caller
+				}
+			}
+			futures.add(future);
+		}
+
+		for (final FutureTask<T> future : futures) {
+			future.run();
+		}
+
+		final List<T> results = new ArrayList<>(futures.size());
+		for (final FutureTask<T> future : futures) {
+			while(true) {
+				try {
+					results.add(future.get());
+					break;
+				} catch (final InterruptedException e) {
+					// ignore
+				} catch (final ExecutionException e) {
+					if(e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+		return results;
+	}
+
+	static void readFully(final InputStream is, final byte[] dst, int offset, int length) throws IOException {
+		while(length > 0) {
+			final int readed = is.read(dst, offset, length);
+			if(readed == -1)
+				throw new IOException("Short read from data");
+			offset += readed;
+			length -= readed;
+		}
+	}
+}
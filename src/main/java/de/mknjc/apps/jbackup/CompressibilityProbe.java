@@ -0,0 +1,54 @@
+package de.mknjc.apps.jbackup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Guesses from the byte entropy of a sample whether a chunk is already compressed.
+ *
+ * The sample is up to 16 spans of 256 bytes spread over the chunk. The entropy measured on a sample of random data
+ * is a bit below 8 bits per byte, the smaller the sample the more, so the limit follows the sample size.
+ * Compressed media, archives and encrypted data are above it, text and most binaries far below.
+ */
+final class CompressibilityProbe {
+	private static final int SPAN = 256;
+	private static final int SPANS = 16;
+	/** how far below the expected entropy of random data a sample still counts as incompressible */
+	private static final double MARGIN = 0.1;
+
+	private CompressibilityProbe() {
+	}
+
+	static boolean isIncompressible(final ByteBuffer data, final int offset, final int length) {
+		if(length < CompressibilityProbe.SPAN * 4)
+			return false;
+
+		final int[] counts = new int[256];
+		final int spans = Math.min(CompressibilityProbe.SPANS, length / CompressibilityProbe.SPAN);
+		final int step = (length - CompressibilityProbe.SPAN) / Math.max(1, spans - 1);
+		for (int i = 0; i < spans; i++) {
+			final int start = offset + i * step;
+			for (int j = start; j < start + CompressibilityProbe.SPAN; j++) {
+				counts[data.get(j) & 0xff]++;
+			}
+		}
+
+		final int n = spans * CompressibilityProbe.SPAN;
+		// the bias of the entropy measured on n random bytes
+		final double random = 8 - 255 / (2 * n * Math.log(2));
+		return CompressibilityProbe.entropy(counts, n) > random - CompressibilityProbe.MARGIN;
+	}
+
+	/**
+	 * @return the entropy in bits per byte
+	 */
+	static double entropy(final int[] counts, final int n) {
+		double entropy = 0;
+		for (final int count : counts) {
+			if(count > 0) {
+				final double p = (double)count / n;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+}
@@ -0,0 +1,123 @@
+package de.mknjc.apps.jbackup;
+
+/**
+ * Picks the lzma level of each bundle from how well the compressors keep up.
+ *
+ * The steps are the lzma levels 0 to 9 and below them optionally a fast fallback compressor. Without a target the
+ * level is lowered when the chunker had to wait for a free compressor and raised when all compressors are idle. With
+ * a target the level is lowered when the measured speed of all compressors is below it and raised when the next
+ * level should still be fast enough. A change needs {@link #VOTES} bundles in a row which ask for it, and after a
+ * change the level is held for at least {@link #MIN_DWELL} bundles and until the bundles compressed with it are
+ * measured, so a single slow or idle moment doesn't flip the level back and forth.
+ */
+final class CompressionController {
+	private static final int MAX_LEVEL = 9;
+	/** the next level has to be this much faster than needed to be tried */
+	private static final double RAISE_MARGIN = 1.5;
+	/** the bundles in a row which have to ask for the same change */
+	private static final int VOTES = 3;
+	/** the bundles compressed with a level before it is changed again */
+	private static final int MIN_DWELL = 4;
+
+	/** the compressor below lzma 0 or null to stay with lzma */
+	private final String fallback;
+	/** bytes per second of input, 0 only looks at the compressors */
+	private final long target;
+	private final int compressors;
+
+	/** 0 is the fallback, lzma levels start at 1 */
+	private int step;
+	private long bundles;
+	private long lastChange;
+	/** the bundles in a row which asked for a higher level, negative for a lower one */
+	private int votes;
+	/** the average input bytes per nanosecond of one compressor on each step, 0 if unknown */
+	private final double[] speeds = new double[CompressionController.MAX_LEVEL + 2];
+
+	CompressionController(final int level, final String fallback, final long target, final int compressors) {
+		this.step = Math.max(0, Math.min(CompressionController.MAX_LEVEL, level)) + 1;
+		this.fallback = fallback;
+		this.target = target;
+		this.compressors = compressors;
+	}
+
+	synchronized String getCompressor() {
+		return this.step == 0 ? this.fallback : "lzma";
+	}
+
+	synchronized int getLevel() {
+		return Math.max(0, this.step - 1);
+	}
+
+	/**
+	 * Called before a bundle is handed to a compressor.
+	 *
+	 * @param busy the compressors working on other bundles
+	 * @param waited the nanoseconds the chunker waited for a free compressor
+	 */
+	synchronized void next(final int busy, final long waited) {
+		this.bundles++;
+		// the bundles which were queued at the change are no measurement of the new level
+		if(this.bundles - this.lastChange <= Math.max(this.compressors, CompressionController.MIN_DWELL))
+			return;
+
+		final double speed = this.speeds[this.step] * this.compressors * 1e9;
+		final int lowest = this.fallback == null ? 1 : 0;
+
+		if(this.target == 0) {
+			if(waited > 0 && this.step > lowest)
+				this.vote(-1, "the chunker waited for a compressor " + CompressionController.VOTES + " times in a row, the last time " + waited / 1000000 + " ms");
+			else if(busy == 0 && waited == 0 && this.step <= CompressionController.MAX_LEVEL)
+				this.vote(1, "all " + this.compressors + " compressors were idle " + CompressionController.VOTES + " times in a row");
+			else
+				this.votes = 0;
+		} else if(speed > 0) {
+			// an unmeasured level is guessed to be half as fast
+			final double nextSpeed = this.step <= CompressionController.MAX_LEVEL ? this.speeds[this.step + 1] * this.compressors * 1e9 : 0;
+			final double expected = nextSpeed > 0 ? nextSpeed : speed / 2;
+			if(speed < this.target && this.step > lowest)
+				this.vote(-1, CompressionController.rate(speed) + " is below the target of " + CompressionController.rate(this.target));
+			else if(this.step <= CompressionController.MAX_LEVEL && expected > this.target * CompressionController.RAISE_MARGIN)
+				this.vote(1, "lzma " + this.step + " should do " + CompressionController.rate(expected) + ", above the target of " + CompressionController.rate(this.target));
+			else
+				this.votes = 0;
+		}
+	}
+
+	/**
+	 * Counts a bundle which asks to change the level by direction, the level is changed after enough of them in a row.
+	 */
+	private void vote(final int direction, final String reason) {
+		this.votes = Integer.signum(this.votes) == direction ? this.votes + direction : direction;
+		if(Math.abs(this.votes) >= CompressionController.VOTES)
+			this.change(this.step + direction, reason);
+	}
+
+	/**
+	 * Called by the compressor after a bundle is written.
+	 */
+	synchronized void compressed(final String compressor, final int level, final int size, final long nanos) {
+		if(size == 0 || nanos <= 0)
+			return;
+
+		final int step = compressor.equals("lzma") ? level + 1 : 0;
+		final double speed = (double)size / nanos;
+		this.speeds[step] = this.speeds[step] == 0 ? speed : this.speeds[step] * 0.75 + speed * 0.25;
+	}
+
+	private void change(final int step, final String reason) {
+		final String from = this.name(this.step);
+		this.step = step;
+		this.lastChange = this.bundles;
+		this.votes = 0;
+		System.err.println("Bundle " + this.bundles + ": compression " + from + " -> " + this.name(step) + ", " + reason);
+	}
+
+	private String name(final int step) {
+		return step == 0 ? this.fallback : "lzma " + (step - 1);
+	}
+
+	private static String rate(final double bytesPerSecond) {
+		return String.format("%.1f MiB/s", bytesPerSecond / (1 << 20));
+	}
+}
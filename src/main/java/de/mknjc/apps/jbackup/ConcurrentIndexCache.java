@@ -0,0 +1,304 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Lock free index cache for several chunking threads.
+ *
+ * The table uses linear probing, a slot is claimed by a CAS on its rolling hash. The other columns are written
+ * afterwards and published by the volatile write of the size, readers which find a claimed but unpublished slot
+ * wait for it. Two threads inserting the same chunk claim slots along the same probing sequence, so the second
+ * one always meets the first one and gets its chunk back.
+ *
+ * The table grows cooperatively: once it is too full a twice as large table is attached and every insert
+ * migrates one block of slots. Empty slots get marked as moved on the way, an insert which runs into such a
+ * slot continues in the new table. Lookups check the old table first and then the new one.
+ *
+ * The table can't grow beyond 2^{@link #MAX_BITS} slots, the atomic arrays are indexed by int. Once the largest
+ * table is 15/16 full new chunks are refused with an IllegalStateException, so the probing always meets an empty slot.
+ */
+public class ConcurrentIndexCache implements IndexCache {
+	private static final long EMPTY = 0;
+	private static final long MOVED = 1;
+
+	private static final int MIN_BITS = 16;
+	private static final int MAX_BITS = 30;
+	private static final int MIGRATION_BLOCK = 1024;
+
+	private final AtomicReference<Table> table;
+	private final LongAdder chunkCount = new LongAdder();
+	/** the bundles are stored by their number */
+	private final BundleRegistry bundleRegistry;
+
+	/** chunks which rolling hash collides with the markers */
+	private final List<ChunkID> markerHashChunks = new ArrayList<>();
+
+	public ConcurrentIndexCache(final long expectedChunks, final BundleRegistry bundles) {
+		this.bundleRegistry = bundles;
+		int i;
+		for(i = ConcurrentIndexCache.MIN_BITS; i < ConcurrentIndexCache.MAX_BITS; i++) {
+			if((1L << i) * 3 / 4 > expectedChunks) {
+				break;
+			}
+		}
+		this.table = new AtomicReference<>(new Table(i));
+	}
+
+	@Override
+	public boolean hasChunk(final long rollingHash) {
+		if(rollingHash == ConcurrentIndexCache.EMPTY || rollingHash == ConcurrentIndexCache.MOVED)
+			return this.findMarkerHashChunk(rollingHash, 0, 0, false) != null;
+
+		for(Table t = this.table.get(); t != null; t = t.next) {
+			int slot = t.homeSlot(rollingHash);
+			long stored;
+			while((stored = t.rollingHashes.get(slot)) != ConcurrentIndexCache.EMPTY && stored != ConcurrentIndexCache.MOVED) {
+				if(stored == rollingHash)
+					return true;
+				slot = (slot + 1) & t.mask;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public ChunkID hasChunkWithHash(final long rollingHash, final long shaHash0, final long shaHash1) {
+		if(rollingHash == ConcurrentIndexCache.EMPTY || rollingHash == ConcurrentIndexCache.MOVED)
+			return this.findMarkerHashChunk(rollingHash, shaHash0, shaHash1, true);
+
+		for(Table t = this.table.get(); t != null; t = t.next) {
+			final int slot = t.find(rollingHash, shaHash0, shaHash1);
+			if(slot >= 0)
+				return t.get(slot, this.bundleRegistry);
+		}
+		return null;
+	}
+
+	@Override
+	public void addChunk(final ChunkID id) {
+		this.addChunkIfAbsent(id);
+	}
+
+	@Override
+	public ChunkID addChunkIfAbsent(final ChunkID id) {
+		final long rollingHash = id.getRollingHash();
+		if(rollingHash == ConcurrentIndexCache.EMPTY || rollingHash == ConcurrentIndexCache.MOVED) {
+			synchronized (this.markerHashChunks) {
+				final ChunkID existing = this.findMarkerHashChunk(rollingHash, id.getHash0(), id.getHash1(), true);
+				if(existing != null)
+					return existing;
+				this.markerHashChunks.add(id);
+			}
+			this.chunkCount.increment();
+			return null;
+		}
+
+		Table t = this.table.get();
+		if(t.next != null)
+			this.helpMigrate(t);
+
+		while(true) {
+			if(t.count.get() >= t.limit) {
+				// a full table only answers for the chunks it already has
+				final int slot = t.find(rollingHash, id.getHash0(), id.getHash1());
+				if(slot >= 0)
+					return t.get(slot, this.bundleRegistry);
+				throw new IllegalStateException("The concurrent index is full with " + this.count() + " chunks, use -O index-cache=bytebuffer");
+			}
+
+			final int result = t.insert(id);
+			if(result == Table.FORWARDED) {
+				t = t.next;
+				continue;
+			}
+			if(result >= 0)
+				return t.get(result, this.bundleRegistry);
+
+			this.chunkCount.increment();
+			if(t.count.incrementAndGet() > t.threshold && t.bits < ConcurrentIndexCache.MAX_BITS && this.table.get() == t)
+				this.startResize(t);
+			return null;
+		}
+	}
+
+	@Override
+	public long count() {
+		return this.chunkCount.sum();
+	}
+
+	@Override
+	public void forEachRollingHash(final LongConsumer consumer) {
+		synchronized (this.markerHashChunks) {
+			for (final ChunkID id : this.markerHashChunks) {
+				consumer.accept(id.getRollingHash());
+			}
+		}
+		// during a migration a chunk may show up in both tables
+		for(Table t = this.table.get(); t != null; t = t.next) {
+			for (int slot = 0; slot <= t.mask; slot++) {
+				final long rollingHash = t.rollingHashes.get(slot);
+				if(rollingHash != ConcurrentIndexCache.EMPTY && rollingHash != ConcurrentIndexCache.MOVED)
+					consumer.accept(rollingHash);
+			}
+		}
+	}
+
+	private ChunkID findMarkerHashChunk(final long rollingHash, final long shaHash0, final long shaHash1, final boolean compareHash) {
+		synchronized (this.markerHashChunks) {
+			for (final ChunkID id : this.markerHashChunks) {
+				if(id.getRollingHash() == rollingHash && (!compareHash || (id.getHash0() == shaHash0 && id.getHash1() == shaHash1)))
+					return id;
+			}
+		}
+		return null;
+	}
+
+	private void startResize(final Table t) {
+		synchronized (t) {
+			if(t.next != null)
+				return;
+			System.err.println("Chunk resize " + this.count());
+			t.next = new Table(t.bits + 1);
+		}
+		this.helpMigrate(t);
+	}
+
+	/**
+	 * Migrates one block of the table into its successor. The thread which finishes the last block makes the
+	 * successor the current table.
+	 */
+	private void helpMigrate(final Table t) {
+		final int start = t.transferIndex.getAndAdd(ConcurrentIndexCache.MIGRATION_BLOCK);
+		if(start > t.mask)
+			return;
+
+		final int end = Math.min(start + ConcurrentIndexCache.MIGRATION_BLOCK, t.mask + 1);
+		for (int slot = start; slot < end; slot++) {
+			long stored;
+			while((stored = t.rollingHashes.get(slot)) == ConcurrentIndexCache.EMPTY) {
+				if(t.rollingHashes.compareAndSet(slot, ConcurrentIndexCache.EMPTY, ConcurrentIndexCache.MOVED))
+					break;
+			}
+			if(stored != ConcurrentIndexCache.EMPTY) {
+				// the successor dedups chunks inserted there in the meantime
+				if(t.next.insert(t.get(slot, this.bundleRegistry)) == Table.INSERTED)
+					t.next.count.incrementAndGet();
+			}
+		}
+
+		if(t.migrated.addAndGet(end - start) == t.mask + 1)
+			this.table.compareAndSet(t, t.next);
+	}
+
+	private static final class Table {
+		/** insert result when the probing ran into a migrated slot */
+		static final int FORWARDED = -2;
+		static final int INSERTED = -1;
+
+		final int bits;
+		final int mask;
+		final int threshold;
+		/** no chunk is inserted beyond this count */
+		final int limit;
+
+		final AtomicLongArray rollingHashes;
+		final long[] hashes0;
+		final long[] hashes1;
+		/** 0 until the slot is published, chunks are never empty */
+		final AtomicIntegerArray sizes;
+		final int[] bundles;
+
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicInteger transferIndex = new AtomicInteger();
+		final AtomicInteger migrated = new AtomicInteger();
+		volatile Table next;
+
+		Table(final int bits) {
+			this.bits = bits;
+			this.mask = (1 << bits) - 1;
+			this.threshold = (int)((1L << bits) * 3 / 4);
+			this.limit = bits < ConcurrentIndexCache.MAX_BITS ? Integer.MAX_VALUE : (int)((1L << bits) * 15 / 16);
+
+			this.rollingHashes = new AtomicLongArray(1 << bits);
+			this.hashes0 = new long[1 << bits];
+			this.hashes1 = new long[1 << bits];
+			this.sizes = new AtomicIntegerArray(1 << bits);
+			this.bundles = new int[1 << bits];
+		}
+
+		int homeSlot(final long rollingHash) {
+			return (int)(rollingHash >>> (64 - this.bits));
+		}
+
+		/**
+		 * @return the slot of the chunk or -1
+		 */
+		int find(final long rollingHash, final long hash0, final long hash1) {
+			int slot = this.homeSlot(rollingHash);
+			long stored;
+			while((stored = this.rollingHashes.get(slot)) != ConcurrentIndexCache.EMPTY && stored != ConcurrentIndexCache.MOVED) {
+				if(stored == rollingHash) {
+					this.awaitPublished(slot);
+					if(this.hashes0[slot] == hash0 && this.hashes1[slot] == hash1)
+						return slot;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the slot of an equal chunk, {@link #INSERTED} or {@link #FORWARDED}
+		 */
+		int insert(final ChunkID id) {
+			final long rollingHash = id.getRollingHash();
+			int slot = this.homeSlot(rollingHash);
+			for(long probes = 0; ; probes++) {
+				if(probes > this.mask)
+					throw new IllegalStateException("No free slot in the index table of " + (this.mask + 1L) + " slots");
+
+				final long stored = this.rollingHashes.get(slot);
+				if(stored == ConcurrentIndexCache.MOVED)
+					return Table.FORWARDED;
+
+				if(stored == ConcurrentIndexCache.EMPTY) {
+					if(!this.rollingHashes.compareAndSet(slot, ConcurrentIndexCache.EMPTY, rollingHash))
+						continue; // somebody else was faster, look at the slot again
+
+					this.hashes0[slot] = id.getHash0();
+					this.hashes1[slot] = id.getHash1();
+					this.bundles[slot] = id.getBundle() == null ? -1 : id.getBundle().getNumber();
+					this.sizes.set(slot, id.getSize());
+					return Table.INSERTED;
+				}
+
+				if(stored == rollingHash) {
+					this.awaitPublished(slot);
+					if(this.hashes0[slot] == id.getHash0() && this.hashes1[slot] == id.getHash1())
+						return slot;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+		}
+
+		ChunkID get(final int slot, final BundleRegistry bundles) {
+			final int size = this.awaitPublished(slot);
+			return new ChunkID(this.rollingHashes.get(slot), size, this.hashes0[slot], this.hashes1[slot], bundles.get(this.bundles[slot]));
+		}
+
+		private int awaitPublished(final int slot) {
+			int size;
+			while((size = this.sizes.get(slot)) == 0) {
+				Thread.yield();
+			}
+			return size;
+		}
+	}
+}
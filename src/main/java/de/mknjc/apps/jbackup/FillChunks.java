@@ -0,0 +1,124 @@
+package de.mknjc.apps.jbackup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Fast path for regions of one repeated byte, like the zeroed parts of disk images.
+ *
+ * A run is found by comparing eight bytes at a time. The chunks inside a long run only depend on the byte value,
+ * so their length, rolling hash and SHA-1 are computed once per value and neither the chunker nor the hashes
+ * run over the region. With a chunker a fill chunk is as long as the chunker cuts a run of its value, so the
+ * chunks are the same as without the fast path. The rolling match cuts a full chunk.
+ */
+final class FillChunks implements Chunker {
+	/** null for the rolling match */
+	private final Chunker chunker;
+	private final int maxSize;
+	/** the fills are immutable, one computed twice by racing threads is harmless */
+	private final Fill[] fills = new Fill[256];
+
+	FillChunks(final Chunker chunker, final int maxSize) {
+		this.chunker = chunker;
+		this.maxSize = chunker != null ? chunker.getMaxSize() : maxSize;
+	}
+
+	/**
+	 * @return the fill chunk starting at offset or null if the run is shorter than the maximum chunk size
+	 */
+	Fill find(final byte[] data, final int offset, final int length) {
+		if(length < this.maxSize || FillChunks.runLength(data, offset, this.maxSize) < this.maxSize)
+			return null;
+		return this.fill(data[offset] & 0xff);
+	}
+
+	Fill find(final ByteBuffer data, final int offset, final int length) {
+		if(length < this.maxSize || FillChunks.runLength(data, offset, this.maxSize) < this.maxSize)
+			return null;
+		return this.fill(data.get(offset) & 0xff);
+	}
+
+	/**
+	 * @return the fill if the chunk is a fill chunk, otherwise null
+	 */
+	Fill match(final ByteBuffer data, final int offset, final int length) {
+		if(length == 0 || FillChunks.runLength(data, offset, length) < length)
+			return null;
+		final Fill fill = this.fill(data.get(offset) & 0xff);
+		return fill.length == length ? fill : null;
+	}
+
+	@Override
+	public int nextChunk(final byte[] data, final int offset, final int length) {
+		final Fill fill = this.find(data, offset, length);
+		return fill != null ? fill.length : this.chunker.nextChunk(data, offset, length);
+	}
+
+	@Override
+	public int nextChunk(final ByteBuffer data, final int offset, final int length) {
+		final Fill fill = this.find(data, offset, length);
+		return fill != null ? fill.length : this.chunker.nextChunk(data, offset, length);
+	}
+
+	@Override
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	private Fill fill(final int value) {
+		Fill fill = this.fills[value];
+		if(fill == null) {
+			final byte[] run = new byte[this.maxSize];
+			Arrays.fill(run, (byte)value);
+			final int length = this.chunker != null ? this.chunker.nextChunk(run, 0, run.length) : run.length;
+			try {
+				final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+				sha1.update(run, 0, length);
+				fill = new Fill(length, RollingHash.digest(run, 0, length), sha1.digest());
+			} catch (final NoSuchAlgorithmException e) {
+				throw new Error("SHA-1 is required.", e);
+			}
+			this.fills[value] = fill;
+		}
+		return fill;
+	}
+
+	/**
+	 * @return the number of bytes from offset which are equal to data[offset], at most length
+	 */
+	static int runLength(final byte[] data, final int offset, final int length) {
+		return FillChunks.runLength(ByteBuffer.wrap(data), offset, length);
+	}
+
+	static int runLength(final ByteBuffer data, final int offset, final int length) {
+		if(length == 0)
+			return 0;
+
+		final ByteBuffer words = data.duplicate().order(ByteOrder.nativeOrder());
+		final long pattern = (data.get(offset) & 0xffL) * 0x0101010101010101L;
+		final int end = offset + length;
+		int i = offset;
+		while(i + 8 <= end && words.getLong(i) == pattern) {
+			i += 8;
+		}
+		while(i < end && data.get(i) == (byte)pattern) {
+			i++;
+		}
+		return i - offset;
+	}
+
+	static final class Fill {
+		final int length;
+		final long rollingHash;
+		final byte[] sha;
+
+		Fill(final int length, final long rollingHash, final byte[] sha) {
+			this.length = length;
+			this.rollingHash = rollingHash;
+			this.sha = sha;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package de.mknjc.apps.jbackup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Content defined chunking with a gear hash like FastCDC.
+ *
+ * The first minSize bytes of a chunk are skipped without hashing. Up to avgSize bytes a boundary needs two
+ * more zero bits than on average and after that two less, this keeps most chunk sizes close to avgSize.
+ * The hash shifts one bit per byte, so the top bits which are tested depend on the last 64 bytes.
+ */
+public class GearChunker implements Chunker {
+	private static final long[] GEAR = new long[256];
+	static {
+		// the table is part of the chunk format, it must never change
+		final Random rand = new Random(0x6a6261636b7570L);
+		for (int i = 0; i < GearChunker.GEAR.length; i++) {
+			GearChunker.GEAR[i] = rand.nextLong();
+		}
+	}
+
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+
+	private final long maskSmall;
+	private final long maskLarge;
+
+	public GearChunker(final int minSize, final int avgSize, final int maxSize) {
+		if(minSize <= 0 || minSize > avgSize || avgSize > maxSize)
+			throw new IllegalArgumentException("Invalid chunk sizes " + minSize + "/" + avgSize + "/" + maxSize);
+
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+
+		final int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+		this.maskSmall = -1L << (64 - Math.min(63, bits + 2));
+		this.maskLarge = -1L << (64 - Math.max(1, bits - 2));
+	}
+
+	@Override
+	public int nextChunk(final byte[] data, final int offset, final int length) {
+		if(length <= this.minSize)
+			return length;
+
+		final int end = offset + Math.min(length, this.maxSize);
+		final int normal = offset + Math.min(length, this.avgSize);
+
+		long hash = 0;
+		int i = offset + this.minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GearChunker.GEAR[data[i] & 0xff];
+			if((hash & this.maskSmall) == 0)
+				return i + 1 - offset;
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GearChunker.GEAR[data[i] & 0xff];
+			if((hash & this.maskLarge) == 0)
+				return i + 1 - offset;
+		}
+		return end - offset;
+	}
+
+	@Override
+	public int nextChunk(final ByteBuffer data, final int offset, final int length) {
+		if(length <= this.minSize)
+			return length;
+
+		final int end = offset + Math.min(length, this.maxSize);
+		final int normal = offset + Math.min(length, this.avgSize);
+
+		long hash = 0;
+		int i = offset + this.minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GearChunker.GEAR[data.get(i) & 0xff];
+			if((hash & this.maskSmall) == 0)
+				return i + 1 - offset;
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GearChunker.GEAR[data.get(i) & 0xff];
+			if((hash & this.maskLarge) == 0)
+				return i + 1 - offset;
+		}
+		return end - offset;
+	}
+
+	@Override
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+}
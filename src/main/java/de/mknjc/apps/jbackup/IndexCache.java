@@ -1,5 +1,7 @@
 package de.mknjc.apps.jbackup;
 
+import java.util.function.LongConsumer;
+
 public interface IndexCache {
 
 	boolean hasChunk(long rollingHash);
@@ -8,6 +10,23 @@ public interface IndexCache {
 
 	void addChunk(ChunkID id);
 
+	/**
+	 * Adds the chunk unless an equal chunk is already stored.
+	 * Caches which are safe for concurrent use make this atomic.
+	 *
+	 * @return the already stored chunk or null if the chunk got added
+	 */
+	default ChunkID addChunkIfAbsent(final ChunkID id) {
+		final ChunkID existing = this.hasChunkWithHash(id.getRollingHash(), id.getHash0(), id.getHash1());
+		if(existing != null)
+			return existing;
+
+		this.addChunk(id);
+		return null;
+	}
+
 	long count();
 
+	void forEachRollingHash(LongConsumer consumer);
+
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import de.mknjc.apps.zbackup.proto.Zbackup.BundleInfo;
+import de.mknjc.apps.zbackup.proto.Zbackup.BundleInfo.ChunkRecord;
+
+/**
+ * Merges the index files of a store into a few large index files without duplicate chunk records.
+ *
+ * The output uses the normal index file format, all chunks of a bundle in one output file share one bundle header
+ * and are sorted by rolling hash. The {@link IndexLoader} merges these sorted runs into one and fills the table
+ * front to back. A chunk stored in several bundles is kept once, with the first bundle it was found in.
+ * Each output file covers a range of the top byte of the rolling hash, so every range needs one pass over the
+ * source files and only one output file is held in memory. All source checksums are verified on every pass.
+ * The new files are first written next to the index directory and moved in after all of them are complete,
+ * only then the source files are removed. An interrupted compaction leaves duplicate chunk records behind at worst.
+ */
+public class IndexCompactor {
+	/** the maximum number of chunk records in one output file */
+	private static final int MAX_RECORDS = 1 << 24;
+
+	private final Path store;
+	private final Random rand = new Random();
+
+	public IndexCompactor(final Path store) {
+		this.store = store;
+	}
+
+	public void compact() throws IOException {
+		final long start = System.nanoTime();
+		final Path indexDir = this.store.resolve("index");
+
+		final List<Path> sources;
+		try (Stream<Path> files = Files.list(indexDir)) {
+			sources = files.sorted().collect(Collectors.toList());
+		}
+		if(sources.size() < 2) {
+			System.err.println("Nothing to compact, " + sources.size() + " index files");
+			return;
+		}
+
+		// first pass, count the records per top byte of the rolling hash to split the output
+		final long[] histogram = new long[256];
+		for (final Path source : sources) {
+			IndexFile.readIndex(source, (bundleId, rollingHash, hash0, hash1, size) -> histogram[(int)(rollingHash >>> 56)]++);
+		}
+
+		final List<int[]> ranges = new ArrayList<>();
+		int rangeStart = 0;
+		long rangeRecords = 0;
+		for (int i = 0; i < 256; i++) {
+			if(rangeRecords > 0 && rangeRecords + histogram[i] > IndexCompactor.MAX_RECORDS) {
+				ranges.add(new int[] { rangeStart, i });
+				rangeStart = i;
+				rangeRecords = 0;
+			}
+			rangeRecords += histogram[i];
+		}
+		ranges.add(new int[] { rangeStart, 256 });
+
+		final List<Path> written = new ArrayList<>();
+		try {
+			for (final int[] range : ranges) {
+				final Records records = new Records();
+				for (final Path source : sources) {
+					IndexFile.readIndex(source, (bundleId, rollingHash, hash0, hash1, size) -> {
+						final int top = (int)(rollingHash >>> 56);
+						if(top >= range[0] && top < range[1])
+							records.add(bundleId, rollingHash, hash0, hash1, size);
+					});
+				}
+				if(records.count == 0)
+					continue;
+
+				final Path tmpPath = this.store.resolve(this.generateName() + ".tmp");
+				IndexFile.writeIndex(tmpPath, records.byBundle());
+				written.add(tmpPath);
+				System.err.println("Wrote " + records.unique + " of " + records.count + " chunk records with rolling hashes 0x" + String.format("%02x", range[0]) + "-0x" + String.format("%02x", range[1] - 1));
+			}
+		} catch (final IOException | RuntimeException e) {
+			for (final Path tmpPath : written) {
+				Files.deleteIfExists(tmpPath);
+			}
+			throw e;
+		}
+
+		for (final Path tmpPath : written) {
+			final String name = tmpPath.getFileName().toString();
+			Files.move(tmpPath, indexDir.resolve(name.substring(0, name.length() - 4)), StandardCopyOption.ATOMIC_MOVE);
+		}
+		for (final Path source : sources) {
+			Files.delete(source);
+		}
+
+		System.err.println("Compacted " + sources.size() + " index files into " + written.size() + " in " + Duration.ofNanos(System.nanoTime() - start));
+	}
+
+	private String generateName() {
+		final byte[] id = new byte[24];
+		this.rand.nextBytes(id);
+		return ZbackupStore.bundleString(id);
+	}
+
+	/**
+	 * The chunk records of one output file in primitive arrays.
+	 */
+	private static final class Records {
+		long[] rollingHashes = new long[1024];
+		long[] hashes0 = new long[1024];
+		long[] hashes1 = new long[1024];
+		int[] sizes = new int[1024];
+		int[] bundles = new int[1024];
+		int count;
+		/** the records left after {@link #byBundle()} dropped the duplicates */
+		int unique;
+
+		final BundleRegistry registry = new BundleRegistry();
+		byte[] lastBundleID;
+		int lastBundleNumber;
+
+		void add(final byte[] bundleId, final long rollingHash, final long hash0, final long hash1, final int size) {
+			// the index reader hands out the same array for all chunks of a bundle
+			if(bundleId != this.lastBundleID) {
+				this.lastBundleID = bundleId;
+				this.lastBundleNumber = this.registry.register(bundleId).getNumber();
+			}
+
+			if(this.count == this.rollingHashes.length) {
+				final int newLength = this.count * 2;
+				this.rollingHashes = Arrays.copyOf(this.rollingHashes, newLength);
+				this.hashes0 = Arrays.copyOf(this.hashes0, newLength);
+				this.hashes1 = Arrays.copyOf(this.hashes1, newLength);
+				this.sizes = Arrays.copyOf(this.sizes, newLength);
+				this.bundles = Arrays.copyOf(this.bundles, newLength);
+			}
+			this.rollingHashes[this.count] = rollingHash;
+			this.hashes0[this.count] = hash0;
+			this.hashes1[this.count] = hash1;
+			this.sizes[this.count] = size;
+			this.bundles[this.count] = this.lastBundleNumber;
+			this.count++;
+		}
+
+		/**
+		 * @return the unique records as one entry per bundle, each in unsigned rolling hash order
+		 */
+		Iterable<Entry<byte[], BundleInfo>> byBundle() {
+			final int[] sorted = RadixSort.order(this.rollingHashes, this.count);
+
+			// the same chunk may be stored in more than one bundle, keep the first one. Different chunks with the
+			// same rolling hash lie between the copies, so every record is compared with all kept ones of its hash.
+			int unique = 0;
+			int runStart = 0;
+			for (int i = 0; i < this.count; i++) {
+				final int record = sorted[i];
+				if(unique > runStart && this.rollingHashes[sorted[runStart]] != this.rollingHashes[record])
+					runStart = unique;
+
+				boolean duplicate = false;
+				for (int j = runStart; j < unique && !duplicate; j++) {
+					duplicate = this.hashes0[sorted[j]] == this.hashes0[record] && this.hashes1[sorted[j]] == this.hashes1[record];
+				}
+				if(!duplicate)
+					sorted[unique++] = record;
+			}
+			final int uniqueCount = unique;
+			this.unique = unique;
+
+			// stable counting sort by bundle, so every bundle gets one header
+			final int[] bundleStart = new int[this.registry.size() + 1];
+			for (int i = 0; i < uniqueCount; i++) {
+				bundleStart[this.bundles[sorted[i]] + 1]++;
+			}
+			for (int b = 0; b < this.registry.size(); b++) {
+				bundleStart[b + 1] += bundleStart[b];
+			}
+			final int[] order = new int[uniqueCount];
+			for (int i = 0; i < uniqueCount; i++) {
+				order[bundleStart[this.bundles[sorted[i]]]++] = sorted[i];
+			}
+
+			return () -> new Iterator<Entry<byte[], BundleInfo>>() {
+				private int pos = 0;
+
+				@Override
+				public boolean hasNext() {
+					return this.pos < uniqueCount;
+				}
+
+				@Override
+				public Entry<byte[], BundleInfo> next() {
+					if(!this.hasNext())
+						throw new NoSuchElementException();
+
+					final int bundle = Records.this.bundles[order[this.pos]];
+					final BundleInfo.Builder info = BundleInfo.newBuilder();
+					while(this.pos < uniqueCount && Records.this.bundles[order[this.pos]] == bundle) {
+						final int i = order[this.pos++];
+						final ChunkID id = new ChunkID(Records.this.rollingHashes[i], Records.this.sizes[i], Records.this.hashes0[i], Records.this.hashes1[i], null);
+						info.addChunkRecord(ChunkRecord.newBuilder().setId(id.toByteString()).setSize(id.getSize()));
+					}
+					return new SimpleImmutableEntry<>(Records.this.registry.get(bundle).getId(), info.build());
+				}
+			};
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package de.mknjc.apps.jbackup;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -27,12 +29,19 @@ public class IndexFile {
 
 
 	public static void writeIndex(final Path indexFile, final Map<byte[], BundleInfo> bundles) throws IOException {
-		try(final Adler32OutputStream cos = new Adler32OutputStream(Files.newOutputStream(indexFile, StandardOpenOption.CREATE_NEW))) {
+		IndexFile.writeIndex(indexFile, bundles.entrySet());
+	}
+
+	/**
+	 * Writes the bundles in the iteration order, the same bundle may occur more than once.
+	 */
+	public static void writeIndex(final Path indexFile, final Iterable<? extends Entry<byte[], BundleInfo>> bundles) throws IOException {
+		try(final Adler32OutputStream cos = new Adler32OutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile, StandardOpenOption.CREATE_NEW)))) {
 
 			final FileHeader header = FileHeader.newBuilder().setVersion(IndexFile.INDEX_FILE_VERSION).build();
 			header.writeDelimitedTo(cos);
 
-			for (final Entry<byte[], BundleInfo> bundle : bundles.entrySet()) {
+			for (final Entry<byte[], BundleInfo> bundle : bundles) {
 				final IndexBundleHeader ibh = IndexBundleHeader.newBuilder().setId(ByteString.copyFrom(bundle.getKey())).build();
 				ibh.writeDelimitedTo(cos);
 
@@ -48,21 +57,64 @@ public class IndexFile {
 	}
 
 
-	public static Stream<ChunkID> getChunksInIndex(final Path indexFile) throws IOException {
-		final IndexFileReader reader = new IndexFileReader(indexFile);
+	/**
+	 * The bundles of the chunks get registered in the registry.
+	 */
+	public static Stream<ChunkID> getChunksInIndex(final Path indexFile, final BundleRegistry bundles) throws IOException {
+		final IndexFileReader reader = new IndexFileReader(indexFile, bundles);
 
 		return StreamSupport.stream(reader, false).onClose(IndexFile.asUncheckedRunnable(reader));
 	}
 
 
+	/**
+	 * Reads all chunk records of the index file without creating ChunkID objects.
+	 * The consumer gets the same bundle id array for all chunks of a bundle.
+	 */
+	public static void readIndex(final Path indexFile, final ChunkRecordConsumer consumer) throws IOException {
+		try(final Adler32InputStream is = new Adler32InputStream(new BufferedInputStream(Files.newInputStream(indexFile, StandardOpenOption.READ)))) {
+			final FileHeader header = FileHeader.parseDelimitedFrom(is);
+			if(header.hasVersion() && header.getVersion() != IndexFile.INDEX_FILE_VERSION) {
+				throw new IOException("Invalid Index file version " + header.getVersion() + " in " + indexFile);
+			}
+
+			while(true) {
+				final IndexBundleHeader bundleHeader = IndexBundleHeader.parseDelimitedFrom(is);
+				if(!bundleHeader.hasId())
+					break;
+
+				final byte[] bundleId = bundleHeader.getId().toByteArray();
+				final BundleInfo info = BundleInfo.parseDelimitedFrom(is);
+
+				for (final ChunkRecord record : info.getChunkRecordList()) {
+					final ByteBuffer bb = record.getId().asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+					final long hash0 = bb.getLong();
+					final long hash1 = bb.getLong();
+					final long rollingHash = bb.getLong();
+
+					consumer.accept(bundleId, rollingHash, hash0, hash1, record.getSize());
+				}
+			}
+
+			if(!is.readChecksum(ByteOrder.LITTLE_ENDIAN))
+				throw new IOException("Checksum error in index file " + indexFile);
+		}
+	}
+
+	public interface ChunkRecordConsumer {
+		void accept(byte[] bundleId, long rollingHash, long hash0, long hash1, int size);
+	}
+
 	private static class IndexFileReader extends Spliterators.AbstractSpliterator<ChunkID> implements Closeable {
 		private final Adler32InputStream is;
+		private final BundleRegistry bundles;
 		private BundleInfo currentBundleInfo;
 		private int currentBundlePos = 0;
-		private byte[] currentBundleId;
+		private BundleId currentBundleId;
 
-		public IndexFileReader(final Path indexFile) throws IOException {
+		public IndexFileReader(final Path indexFile, final BundleRegistry bundles) throws IOException {
 			super(Long.MAX_VALUE, Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.DISTINCT | Spliterator.ORDERED);
+			this.bundles = bundles;
 
 			try {
 				this.is = new Adler32InputStream(Files.newInputStream(indexFile, StandardOpenOption.READ));
@@ -88,7 +140,7 @@ public class IndexFile {
 						this.close();
 						return false;
 					}
-					this.currentBundleId = header.getId().toByteArray();
+					this.currentBundleId = this.bundles.register(header.getId().toByteArray());
 
 					this.currentBundleInfo = BundleInfo.parseDelimitedFrom(this.is);
 					this.currentBundlePos = 0;
@@ -0,0 +1,340 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Loads index files in parallel into a {@link ByteBufferIndexCache}.
+ *
+ * The files are parsed concurrently, one task per file, into primitive batches which are already sorted by
+ * table partition. Afterwards each partition of the table gets filled by its own task, chunks which
+ * probing sequence runs out of their partition are inserted sequentially at the end.
+ * To bound the heap usage the files are processed in waves of about {@link #WAVE_SIZE} bytes.
+ *
+ * Files sorted by rolling hash take a fast path: they are already in partition order and every insert continues
+ * probing behind the slot of the previous chunk, so the table is filled front to back. Files made of long sorted
+ * runs, like the bundles of a compacted index file, are merged into one run first.
+ */
+public class IndexLoader {
+	private static final long WAVE_SIZE = 256L << 20;
+	/** the average run length from which the runs of a file are merged, random rolling hashes give runs of 2 */
+	private static final int MIN_RUN_LENGTH = 4;
+
+	private final int threads;
+
+	public IndexLoader(final int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public void load(final List<Path> indexFiles, final ByteBufferIndexCache cache) throws IOException {
+		this.load(indexFiles, cache, null);
+	}
+
+	/**
+	 * @param loaded gets the rolling hashes of all loaded chunks from one thread, may be null
+	 */
+	public void load(final List<Path> indexFiles, final ByteBufferIndexCache cache, final LongConsumer loaded) throws IOException {
+		if(indexFiles.isEmpty())
+			return;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		try {
+			// some more partitions than threads so an unlucky partition doesn't stall the others
+			final int partitionBits = Math.min(cache.getBits(), 32 - Integer.numberOfLeadingZeros(this.threads * 4 - 1));
+
+			final List<Path> wave = new ArrayList<>();
+			long waveSize = 0;
+			for (final Path indexFile : indexFiles) {
+				wave.add(indexFile);
+				waveSize += Files.size(indexFile);
+
+				if(waveSize >= IndexLoader.WAVE_SIZE) {
+					this.loadWave(wave, cache, executor, partitionBits, loaded);
+					wave.clear();
+					waveSize = 0;
+				}
+			}
+			this.loadWave(wave, cache, executor, partitionBits, loaded);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void loadWave(final List<Path> indexFiles, final ByteBufferIndexCache cache, final ExecutorService executor, int partitionBits, final LongConsumer loaded) throws IOException {
+		if(indexFiles.isEmpty())
+			return;
+
+		final List<Future<Batch>> parsing = new ArrayList<>();
+		for (final Path indexFile : indexFiles) {
+			final int bits = partitionBits;
+			parsing.add(executor.submit(() -> Batch.read(indexFile, bits, cache.getBundleRegistry())));
+		}
+
+		final List<Batch> batches = new ArrayList<>();
+		long chunks = 0;
+		for (final Future<Batch> future : parsing) {
+			final Batch batch = IndexLoader.get(future);
+			batches.add(batch);
+			chunks += batch.count;
+
+			if(loaded != null) {
+				for (int i = 0; i < batch.count; i++) {
+					loaded.accept(batch.rollingHashes[i]);
+				}
+			}
+		}
+
+		cache.ensureCapacity(cache.count() + chunks);
+		if(partitionBits > cache.getBits())
+			throw new IllegalStateException("More partitions than table slots");
+
+		final int partitions = 1 << partitionBits;
+		final long partitionSize = 1L << (cache.getBits() - partitionBits);
+
+		final List<Future<Batch>> inserting = new ArrayList<>();
+		for (int p = 0; p < partitions; p++) {
+			final int partition = p;
+			inserting.add(executor.submit(() -> {
+				final long partitionEnd = (partition + 1) * partitionSize;
+				final Batch overflow = new Batch();
+				for (final Batch batch : batches) {
+					long hint = -1;
+					for (int i = batch.partitionStart[partition]; i < batch.partitionStart[partition + 1]; i++) {
+						final long slot = batch.rollingHashes[i] == 0 ? -1 : cache.insertInPartition(batch.rollingHashes[i], batch.hashes0[i], batch.hashes1[i], batch.sizes[i], batch.bundles[i], hint, partitionEnd);
+						if(slot < 0) {
+							overflow.add(batch.bundles[i], batch.rollingHashes[i], batch.hashes0[i], batch.hashes1[i], batch.sizes[i]);
+						} else if(batch.sorted) {
+							hint = slot;
+						}
+					}
+				}
+				return overflow;
+			}));
+		}
+
+		final List<Batch> overflows = new ArrayList<>();
+		long overflowCount = 0;
+		for (final Future<Batch> future : inserting) {
+			final Batch overflow = IndexLoader.get(future);
+			overflows.add(overflow);
+			overflowCount += overflow.count;
+		}
+
+		cache.addToCount(chunks - overflowCount);
+		for (final Batch overflow : overflows) {
+			for (int i = 0; i < overflow.count; i++) {
+				cache.addChunk(overflow.rollingHashes[i], overflow.hashes0[i], overflow.hashes1[i], overflow.sizes[i], overflow.bundles[i]);
+			}
+		}
+
+		System.err.println("Loaded " + chunks + " chunkids from " + indexFiles.size() + " index files, " + overflowCount + " inserted sequentially");
+	}
+
+	private static <T> T get(final Future<T> future) throws IOException {
+		while(true) {
+			try {
+				return future.get();
+			} catch (final InterruptedException e) {
+				// ignore
+			} catch (final ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * The chunk records of one index file in primitive arrays.
+	 */
+	private static final class Batch {
+		long[] rollingHashes = new long[1024];
+		long[] hashes0 = new long[1024];
+		long[] hashes1 = new long[1024];
+		int[] sizes = new int[1024];
+		/** the bundle numbers from the registry of the cache */
+		int[] bundles = new int[1024];
+		int count;
+		/** the rolling hashes are in ascending unsigned order */
+		boolean sorted = true;
+		/** the starts of the runs of ascending rolling hashes */
+		int[] runStarts = new int[16];
+		int runs = 1;
+
+		int[] partitionStart;
+
+		/** the bundle of the previous chunk record */
+		byte[] lastBundleID;
+		int lastBundleNumber;
+
+		static Batch read(final Path indexFile, final int partitionBits, final BundleRegistry bundles) throws IOException {
+			final Batch batch = new Batch();
+
+			IndexFile.readIndex(indexFile, (bundleId, rollingHash, hash0, hash1, size) -> {
+				// the reader hands out the same array for all chunks of a bundle, so the registry is only asked once per bundle
+				if(bundleId != batch.lastBundleID) {
+					batch.lastBundleID = bundleId;
+					batch.lastBundleNumber = bundles.register(bundleId).getNumber();
+				}
+
+				batch.add(batch.lastBundleNumber, rollingHash, hash0, hash1, size);
+			});
+
+			if(!batch.sorted && batch.runs <= batch.count / IndexLoader.MIN_RUN_LENGTH)
+				batch.mergeRuns();
+			batch.sortByPartition(partitionBits);
+			return batch;
+		}
+
+		void add(final int bundle, final long rollingHash, final long hash0, final long hash1, final int size) {
+			if(this.count == this.rollingHashes.length) {
+				final int newLength = this.count * 2;
+				this.rollingHashes = Arrays.copyOf(this.rollingHashes, newLength);
+				this.hashes0 = Arrays.copyOf(this.hashes0, newLength);
+				this.hashes1 = Arrays.copyOf(this.hashes1, newLength);
+				this.sizes = Arrays.copyOf(this.sizes, newLength);
+				this.bundles = Arrays.copyOf(this.bundles, newLength);
+			}
+			if(this.count > 0 && Long.compareUnsigned(this.rollingHashes[this.count - 1], rollingHash) > 0) {
+				this.sorted = false;
+				if(this.runs == this.runStarts.length)
+					this.runStarts = Arrays.copyOf(this.runStarts, this.runs * 2);
+				this.runStarts[this.runs++] = this.count;
+			}
+
+			this.rollingHashes[this.count] = rollingHash;
+			this.hashes0[this.count] = hash0;
+			this.hashes1[this.count] = hash1;
+			this.sizes[this.count] = size;
+			this.bundles[this.count] = bundle;
+			this.count++;
+		}
+
+		/**
+		 * Merges the sorted runs into one, two neighbouring runs at a time. Only the rolling hashes and the positions
+		 * of the records are moved while merging.
+		 */
+		private void mergeRuns() {
+			final int[] bounds = Arrays.copyOf(this.runStarts, this.runs + 1);
+			bounds[this.runs] = this.count;
+			long[] keys = Arrays.copyOf(this.rollingHashes, this.count);
+			long[] nextKeys = new long[this.count];
+			int[] order = new int[this.count];
+			int[] nextOrder = new int[this.count];
+			for (int i = 0; i < this.count; i++) {
+				order[i] = i;
+			}
+
+			int runs = this.runs;
+			while(runs > 1) {
+				int merged = 0;
+				for (int r = 0; r < runs; r += 2) {
+					final int from = bounds[r];
+					final int mid = bounds[Math.min(r + 1, runs)];
+					final int to = bounds[Math.min(r + 2, runs)];
+
+					int a = from;
+					int b = mid;
+					int out = from;
+					while(a < mid && b < to) {
+						if(Long.compareUnsigned(keys[a], keys[b]) <= 0) {
+							nextKeys[out] = keys[a];
+							nextOrder[out++] = order[a++];
+						} else {
+							nextKeys[out] = keys[b];
+							nextOrder[out++] = order[b++];
+						}
+					}
+					System.arraycopy(keys, a, nextKeys, out, mid - a);
+					System.arraycopy(order, a, nextOrder, out, mid - a);
+					out += mid - a;
+					System.arraycopy(keys, b, nextKeys, out, to - b);
+					System.arraycopy(order, b, nextOrder, out, to - b);
+
+					bounds[merged++] = from;
+				}
+				bounds[merged] = this.count;
+				runs = merged;
+
+				final long[] swapKeys = keys;
+				keys = nextKeys;
+				nextKeys = swapKeys;
+				final int[] swapOrder = order;
+				order = nextOrder;
+				nextOrder = swapOrder;
+			}
+
+			final long[] sortedHashes0 = new long[this.count];
+			final long[] sortedHashes1 = new long[this.count];
+			final int[] sortedSizes = new int[this.count];
+			final int[] sortedBundles = new int[this.count];
+			for (int i = 0; i < this.count; i++) {
+				sortedHashes0[i] = this.hashes0[order[i]];
+				sortedHashes1[i] = this.hashes1[order[i]];
+				sortedSizes[i] = this.sizes[order[i]];
+				sortedBundles[i] = this.bundles[order[i]];
+			}
+
+			this.rollingHashes = keys;
+			this.hashes0 = sortedHashes0;
+			this.hashes1 = sortedHashes1;
+			this.sizes = sortedSizes;
+			this.bundles = sortedBundles;
+			this.runs = 1;
+			this.sorted = true;
+		}
+
+		/**
+		 * Counting sort by the top bits of the rolling hash, which are the table partition of the chunk.
+		 */
+		private void sortByPartition(final int partitionBits) {
+			final int partitions = 1 << partitionBits;
+			this.partitionStart = new int[partitions + 1];
+
+			for (int i = 0; i < this.count; i++) {
+				this.partitionStart[Batch.partition(this.rollingHashes[i], partitionBits) + 1]++;
+			}
+			for (int p = 0; p < partitions; p++) {
+				this.partitionStart[p + 1] += this.partitionStart[p];
+			}
+
+			if(this.sorted)
+				return;
+
+			final int[] next = Arrays.copyOf(this.partitionStart, partitions);
+			final long[] sortedRollingHashes = new long[this.count];
+			final long[] sortedHashes0 = new long[this.count];
+			final long[] sortedHashes1 = new long[this.count];
+			final int[] sortedSizes = new int[this.count];
+			final int[] sortedBundles = new int[this.count];
+
+			for (int i = 0; i < this.count; i++) {
+				final int pos = next[Batch.partition(this.rollingHashes[i], partitionBits)]++;
+				sortedRollingHashes[pos] = this.rollingHashes[i];
+				sortedHashes0[pos] = this.hashes0[i];
+				sortedHashes1[pos] = this.hashes1[i];
+				sortedSizes[pos] = this.sizes[i];
+				sortedBundles[pos] = this.bundles[i];
+			}
+
+			this.rollingHashes = sortedRollingHashes;
+			this.hashes0 = sortedHashes0;
+			this.hashes1 = sortedHashes1;
+			this.sizes = sortedSizes;
+			this.bundles = sortedBundles;
+		}
+
+		private static int partition(final long rollingHash, final int partitionBits) {
+			return partitionBits == 0 ? 0 : (int)(rollingHash >>> (64 - partitionBits));
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Chunks grouped by the table partition of their home slot, the top bits of the slot, so every partition of a
+ * table can be filled by its own thread. The home slot are the low bits of the rolling hash like in
+ * {@link LinearArrayIndexCache} and {@link StackedArrayIndexCache}.
+ */
+final class IndexPartitions {
+	private final ChunkID[] chunks;
+	private final int[] starts;
+	private final int threads;
+
+	/**
+	 * @param bits the table size as power of two
+	 * @param minPartitionBits the smallest partition as power of two, the partitions own whole segments then
+	 */
+	IndexPartitions(final ChunkID[] ids, final int bits, final int minPartitionBits, final int threads) {
+		this.threads = Math.max(1, threads);
+		// some more partitions than threads so an unlucky partition doesn't stall the others
+		final int partitionBits = this.threads == 1 ? 0 : Math.min(bits - minPartitionBits, 32 - Integer.numberOfLeadingZeros(this.threads * 4 - 1));
+		final int partitions = 1 << partitionBits;
+		final long mask = (1L << bits) - 1;
+		final int shift = bits - partitionBits;
+
+		// counting sort by partition
+		this.starts = new int[partitions + 1];
+		for (final ChunkID id : ids) {
+			this.starts[(int)((id.getRollingHash() & mask) >>> shift) + 1]++;
+		}
+		for (int p = 0; p < partitions; p++) {
+			this.starts[p + 1] += this.starts[p];
+		}
+
+		if(partitions == 1) {
+			this.chunks = ids;
+			return;
+		}
+		final int[] next = new int[partitions];
+		System.arraycopy(this.starts, 0, next, 0, partitions);
+		this.chunks = new ChunkID[ids.length];
+		for (final ChunkID id : ids) {
+			this.chunks[next[(int)((id.getRollingHash() & mask) >>> shift)]++] = id;
+		}
+	}
+
+	int getPartitions() {
+		return this.starts.length - 1;
+	}
+
+	/**
+	 * @return the first slot behind the partition
+	 */
+	long getPartitionEnd(final int partition, final int bits) {
+		return (long)(partition + 1) << (bits - Integer.numberOfTrailingZeros(this.getPartitions()));
+	}
+
+	ChunkID[] getChunks() {
+		return this.chunks;
+	}
+
+	int getStart(final int partition) {
+		return this.starts[partition];
+	}
+
+	int getEnd(final int partition) {
+		return this.starts[partition + 1];
+	}
+
+	/**
+	 * Calls the consumer for every partition, the partitions run concurrently.
+	 */
+	void forEach(final IntConsumer partition) {
+		if(this.getPartitions() == 1) {
+			partition.accept(0);
+			return;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(this.threads);
+		try {
+			pool.submit(() -> IntStream.range(0, this.getPartitions()).parallel().forEach(partition)).get();
+		} catch (final InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Can't fill the index", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import de.mknjc.apps.zbackup.proto.Zbackup.BundleInfo;
+
+/**
+ * Recreates the index files of a store from the bundles.
+ *
+ * Only the header and the chunk records at the start of each bundle file are read, the payload is never
+ * decompressed. The bundles are read in parallel, a bounded number of them is in flight so the memory use
+ * doesn't depend on the store size. Like {@link IndexCompactor} the new files are written next to the index
+ * directory and moved in when all of them are complete, only then the old index files are removed.
+ * An erasure coded bundle which chunk records are damaged is read completely and repaired. If any bundle stays
+ * unreadable the rebuild is aborted and the index directory is left untouched.
+ */
+public class IndexRebuilder {
+	/** the maximum number of chunk records in one output file */
+	private static final int MAX_RECORDS = 1 << 20;
+	private static final Pattern BUNDLE_NAME = Pattern.compile("[0-9a-f]{48}");
+
+	private final Path store;
+	private final int threads;
+	private final Random rand = new Random();
+
+	public IndexRebuilder(final Path store, final int threads) {
+		this.store = store;
+		this.threads = Math.max(1, threads);
+	}
+
+	public void rebuild() throws IOException {
+		final long start = System.nanoTime();
+		final Path indexDir = this.store.resolve("index");
+		Files.createDirectories(indexDir);
+
+		final List<Path> oldIndexFiles;
+		try (Stream<Path> files = Files.list(indexDir)) {
+			oldIndexFiles = files.collect(Collectors.toList());
+		}
+
+		final Path bundlesDir = this.store.resolve("bundles");
+		final List<Path> bundles;
+		if(Files.isDirectory(bundlesDir)) {
+			try (Stream<Path> files = Files.walk(bundlesDir, 2)) {
+				bundles = files.filter(t -> IndexRebuilder.BUNDLE_NAME.matcher(t.getFileName().toString()).matches() && Files.isRegularFile(t)).collect(Collectors.toList());
+			}
+		} else {
+			// a store without any backup
+			bundles = new ArrayList<>();
+		}
+
+		final List<Path> written = new ArrayList<>();
+		final List<Entry<byte[], BundleInfo>> current = new ArrayList<>();
+		int currentRecords = 0;
+		long chunks = 0;
+		final List<Path> failed = new ArrayList<>();
+
+		final ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		try {
+			final Deque<Future<BundleInfo>> reading = new ArrayDeque<>();
+			final Deque<Path> readingPaths = new ArrayDeque<>();
+			int next = 0;
+
+			while(next < bundles.size() || !reading.isEmpty()) {
+				while(next < bundles.size() && reading.size() < this.threads * 4) {
+					final Path bundle = bundles.get(next++);
+					reading.add(executor.submit(() -> Bundle.readBundleInfo(bundle)));
+					readingPaths.add(bundle);
+				}
+
+				final Path bundle = readingPaths.remove();
+				final BundleInfo info;
+				try {
+					info = IndexRebuilder.get(reading.remove());
+				} catch (final IOException e) {
+					System.err.println("Can't read bundle " + bundle + ": " + e.getMessage());
+					failed.add(bundle);
+					continue;
+				}
+
+				current.add(new SimpleImmutableEntry<>(IndexRebuilder.parseBundleId(bundle.getFileName().toString()), info));
+				currentRecords += info.getChunkRecordCount();
+				chunks += info.getChunkRecordCount();
+
+				if(currentRecords >= IndexRebuilder.MAX_RECORDS) {
+					written.add(this.writeTmpIndex(current));
+					current.clear();
+					currentRecords = 0;
+				}
+			}
+			if(!current.isEmpty())
+				written.add(this.writeTmpIndex(current));
+
+			// the old index files may still know the chunks of the unreadable bundles, the new ones would miss them
+			if(!failed.isEmpty())
+				throw new IOException(failed.size() + " of " + bundles.size() + " bundles are unreadable, the index was left unchanged: "
+						+ failed.stream().map(t -> t.getFileName().toString()).collect(Collectors.joining(", ")));
+		} catch (final IOException | RuntimeException e) {
+			for (final Path tmpPath : written) {
+				Files.deleteIfExists(tmpPath);
+			}
+			throw e;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (final Path tmpPath : written) {
+			final String name = tmpPath.getFileName().toString();
+			Files.move(tmpPath, indexDir.resolve(name.substring(0, name.length() - 4)), StandardCopyOption.ATOMIC_MOVE);
+		}
+		for (final Path oldIndexFile : oldIndexFiles) {
+			Files.delete(oldIndexFile);
+		}
+
+		System.err.println("Rebuilt " + written.size() + " index files with " + chunks + " chunk records from " + bundles.size() + " bundles in " + Duration.ofNanos(System.nanoTime() - start));
+	}
+
+	private Path writeTmpIndex(final List<Entry<byte[], BundleInfo>> bundles) throws IOException {
+		final byte[] id = new byte[24];
+		this.rand.nextBytes(id);
+
+		final Path tmpPath = this.store.resolve(ZbackupStore.bundleString(id) + ".tmp");
+		IndexFile.writeIndex(tmpPath, bundles);
+		return tmpPath;
+	}
+
+	private static byte[] parseBundleId(final String name) {
+		final byte[] id = new byte[name.length() / 2];
+		for (int i = 0; i < id.length; i++) {
+			id[i] = (byte)Integer.parseInt(name.substring(i * 2, i * 2 + 2), 16);
+		}
+		return id;
+	}
+
+	private static <T> T get(final Future<T> future) throws IOException {
+		while(true) {
+			try {
+				return future.get();
+			} catch (final InterruptedException e) {
+				// ignore
+			} catch (final ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * A binary snapshot of a {@link ByteBufferIndexCache} together with the index files it was built from.
+ *
+ * The snapshot is only valid as long as all the index files it covers still exist with the same size,
+ * index files added since then can be merged into the mapped table. The words of the rolling hash filter can
+ * be stored behind the table, so the filter doesn't have to be built from the table again. Two CRC32 are appended: one of the headers,
+ * which is checked on every load, and one of the table slabs and the filter, which is only checked by {@link #verify(Path)} so
+ * a load doesn't have to read the whole table.
+ */
+public class IndexSnapshot {
+	private static final long MAGIC = 0x4a42494458534e31L; // JBIDXSN1
+	private static final int VERSION = 4;
+	/** the part of the file which is checksummed in one go */
+	private static final long CRC_STEP = 1 << 28;
+	/** the header CRC and the table CRC */
+	private static final int TRAILER = 16;
+
+	private final ByteBufferIndexCache cache;
+	private final RollingHashFilter filter;
+	private final Map<String, Long> coveredFiles;
+
+	private IndexSnapshot(final ByteBufferIndexCache cache, final RollingHashFilter filter, final Map<String, Long> coveredFiles) {
+		this.cache = cache;
+		this.filter = filter;
+		this.coveredFiles = coveredFiles;
+	}
+
+	public ByteBufferIndexCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * @return the filter of the rolling hashes in the cache or null if none was stored
+	 */
+	public RollingHashFilter getFilter() {
+		return this.filter;
+	}
+
+	/**
+	 * @return the index file names with their sizes which are already contained in the cache
+	 */
+	public Map<String, Long> getCoveredFiles() {
+		return Collections.unmodifiableMap(this.coveredFiles);
+	}
+
+	/**
+	 * @return the snapshot file of the store
+	 */
+	public static Path of(final Path store) {
+		return store.resolve("cache").resolve("index-snapshot");
+	}
+
+	/**
+	 * Maps the snapshot if it is still valid for the given index files. Only the headers are checked, the table
+	 * is mapped unread.
+	 *
+	 * @param snapshot the snapshot file
+	 * @param indexFiles the index file names with their sizes currently in the store
+	 * @param bundles the empty registry which gets the bundles of the snapshot
+	 * @param withFilter whether a stored filter is read
+	 * @return the snapshot or null if there is no usable snapshot
+	 */
+	public static IndexSnapshot load(final Path snapshot, final Map<String, Long> indexFiles, final BundleRegistry bundles, final boolean withFilter) throws IOException {
+		if(!Files.isRegularFile(snapshot))
+			return null;
+
+		// copy on write mappings need a writable channel, the file itself is never changed
+		try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final long headerLength = IndexSnapshot.headerLength(channel);
+			if(headerLength < 0)
+				return null;
+
+			final ByteBuffer headers = IndexSnapshot.readHeaders(channel, headerLength, channel.size() - IndexSnapshot.TRAILER);
+			if(headers == null)
+				return null;
+
+			final CRC32 crc = new CRC32();
+			crc.update(headers.array());
+			if(IndexSnapshot.readTrailer(channel, 0) != crc.getValue()) {
+				System.err.println("Index snapshot is damaged, the checksum of the headers doesn't match");
+				return null;
+			}
+
+			final DataInputStream header = new DataInputStream(new ByteArrayInputStream(headers.array(), 0, (int)headerLength));
+
+			if(header.readInt() != IndexSnapshot.VERSION)
+				return null;
+
+			final long filterSize = header.readLong();
+			if(filterSize < 0 || filterSize > channel.size() - IndexSnapshot.TRAILER - 16 - headers.capacity())
+				return null;
+
+			final Map<String, Long> coveredFiles = new HashMap<>();
+			final int fileCount = header.readInt();
+			for (int i = 0; i < fileCount; i++) {
+				final byte[] name = new byte[header.readShort()];
+				header.readFully(name);
+				final long size = header.readLong();
+				final String fileName = new String(name, StandardCharsets.UTF_8);
+
+				// a covered index file got removed or changed, the table may contain chunks which are gone
+				if(!Long.valueOf(size).equals(indexFiles.get(fileName))) {
+					System.err.println("Index snapshot is outdated, index file " + fileName + " changed");
+					return null;
+				}
+				coveredFiles.put(fileName, size);
+			}
+
+			final RollingHashFilter filter = filterSize == 0 || !withFilter ? null : RollingHashFilter.read(channel, channel.size() - IndexSnapshot.TRAILER - filterSize, filterSize);
+
+			// the mappings stay valid after the channel is closed
+			return new IndexSnapshot(ByteBufferIndexCache.map(channel, 16 + headerLength, bundles), filter, coveredFiles);
+		}
+	}
+
+	/**
+	 * Reads the whole snapshot and checks the table against its checksum.
+	 *
+	 * @return false if the snapshot is damaged or no snapshot
+	 */
+	public static boolean verify(final Path snapshot) throws IOException {
+		try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			final long headerLength = IndexSnapshot.headerLength(channel);
+			if(headerLength < 0)
+				return false;
+
+			final ByteBuffer headers = IndexSnapshot.readHeaders(channel, headerLength, channel.size() - IndexSnapshot.TRAILER);
+			if(headers == null)
+				return false;
+
+			final CRC32 crc = new CRC32();
+			crc.update(headers.array());
+			if(IndexSnapshot.readTrailer(channel, 0) != crc.getValue())
+				return false;
+
+			final long slabStart = 16 + headers.capacity();
+			final long slabEnd = channel.size() - IndexSnapshot.TRAILER;
+			crc.reset();
+			for(long position = slabStart; position < slabEnd; position += IndexSnapshot.CRC_STEP) {
+				crc.update(channel.map(MapMode.READ_ONLY, position, Math.min(IndexSnapshot.CRC_STEP, slabEnd - position)));
+			}
+			return IndexSnapshot.readTrailer(channel, 8) == crc.getValue();
+		}
+	}
+
+	/**
+	 * Writes a new snapshot, the old one gets replaced atomically.
+	 *
+	 * @param filter the filter of the rolling hashes in the cache or null
+	 */
+	public static void write(final Path snapshot, final ByteBufferIndexCache cache, final RollingHashFilter filter, final Map<String, Long> indexFiles) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream(bytes);
+
+		header.writeInt(IndexSnapshot.VERSION);
+		header.writeLong(filter == null ? 0 : filter.getSize());
+		header.writeInt(indexFiles.size());
+		for (final Entry<String, Long> file : indexFiles.entrySet()) {
+			final byte[] name = file.getKey().getBytes(StandardCharsets.UTF_8);
+			header.writeShort(name.length);
+			header.write(name);
+			header.writeLong(file.getValue());
+		}
+		while(bytes.size() % 8 != 0) {
+			header.write(0);
+		}
+		header.flush();
+
+		Files.createDirectories(snapshot.getParent());
+		// every writer gets its own file, the last move wins
+		final Path tmpPath = Files.createTempFile(snapshot.getParent(), snapshot.getFileName().toString(), ".tmp");
+
+		try {
+			try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				final ByteBuffer headerBuffer = ByteBuffer.allocate(16 + bytes.size());
+				headerBuffer.putLong(IndexSnapshot.MAGIC).putLong(bytes.size()).put(bytes.toByteArray()).flip();
+				while(headerBuffer.hasRemaining()) {
+					channel.write(headerBuffer);
+				}
+
+				// the slabs are checksummed while they are written, the headers are read back
+				final CRC32 slabCrc = new CRC32();
+				cache.writeTo(channel, slabCrc);
+				if(filter != null)
+					filter.writeTo(channel, slabCrc);
+
+				final CRC32 headerCrc = new CRC32();
+				headerCrc.update(IndexSnapshot.readHeaders(channel, bytes.size(), channel.size()).array());
+
+				final ByteBuffer trailer = ByteBuffer.allocate(IndexSnapshot.TRAILER);
+				trailer.putLong(headerCrc.getValue()).putLong(slabCrc.getValue()).flip();
+				final long end = channel.size();
+				while(trailer.hasRemaining()) {
+					channel.write(trailer, end + trailer.position());
+				}
+				channel.force(true);
+			}
+
+			Files.move(tmpPath, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmpPath);
+		}
+	}
+
+	/**
+	 * @return the length of the snapshot header or -1 if the file is no snapshot
+	 */
+	private static long headerLength(final FileChannel channel) throws IOException {
+		final ByteBuffer lengthBuffer = ByteBuffer.allocate(16);
+		while(lengthBuffer.hasRemaining()) {
+			if(channel.read(lengthBuffer, lengthBuffer.position()) == -1)
+				return -1;
+		}
+		if(lengthBuffer.getLong(0) != IndexSnapshot.MAGIC)
+			return -1;
+
+		final long headerLength = lengthBuffer.getLong(8);
+		if(headerLength < 0 || headerLength > channel.size() - 16 - IndexSnapshot.TRAILER)
+			return -1;
+		return headerLength;
+	}
+
+	/**
+	 * @param end the end of the table
+	 * @return the snapshot header and the header of the table, everything in front of the slabs, or null if the file is truncated
+	 */
+	private static ByteBuffer readHeaders(final FileChannel channel, final long headerLength, final long end) throws IOException {
+		final ByteBuffer tableHeaderLength = ByteBuffer.allocate(8);
+		while(tableHeaderLength.hasRemaining()) {
+			if(channel.read(tableHeaderLength, 16 + headerLength + tableHeaderLength.position()) == -1)
+				return null;
+		}
+
+		final long length = headerLength + 8 + tableHeaderLength.getLong(0);
+		if(tableHeaderLength.getLong(0) < 0 || length > end - 16 || length > Integer.MAX_VALUE)
+			return null;
+
+		final ByteBuffer headers = ByteBuffer.allocate((int)length);
+		while(headers.hasRemaining()) {
+			if(channel.read(headers, 16 + headers.position()) == -1)
+				return null;
+		}
+		return headers;
+	}
+
+	/**
+	 * @param offset 0 for the CRC of the headers, 8 for the one of the table
+	 */
+	private static long readTrailer(final FileChannel channel, final int offset) throws IOException {
+		final ByteBuffer crcBuffer = ByteBuffer.allocate(8);
+		final long position = channel.size() - IndexSnapshot.TRAILER + offset;
+		while(crcBuffer.hasRemaining()) {
+			if(channel.read(crcBuffer, position + crcBuffer.position()) == -1)
+				throw new IOException("Unexpected EOF");
+		}
+		return crcBuffer.getLong(0);
+	}
+}
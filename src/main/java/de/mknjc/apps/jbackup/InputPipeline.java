@@ -0,0 +1,141 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The first stages of a backup: one thread reads the input into pooled blocks, another one computes the SHA-256
+ * of the whole input. The chunking thread reads the hashed blocks through this stream.
+ */
+final class InputPipeline extends InputStream {
+	private static final int BLOCK_SIZE = 1 << 20;
+	private static final int QUEUE_BLOCKS = 4;
+
+	private final InputStream in;
+	private final BufferPool blocks = new BufferPool(InputPipeline.BLOCK_SIZE, InputPipeline.QUEUE_BLOCKS * 2 + 3);
+	private final StageQueue<Block> read = new StageQueue<>("read", InputPipeline.QUEUE_BLOCKS);
+	private final StageQueue<Block> hashed = new StageQueue<>("sha256", InputPipeline.QUEUE_BLOCKS);
+	private final MessageDigest totalSHA;
+
+	// only touched by the sha256 thread until the end block is handed over
+	private long length;
+	private byte[] sha256;
+
+	private Block current;
+	private int position;
+
+	InputPipeline(final InputStream in) {
+		this.in = in;
+		try {
+			this.totalSHA = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 is required.", e);
+		}
+
+		final Thread reader = new Thread(this::readInput, "backup-reader");
+		reader.setDaemon(true);
+		reader.start();
+		final Thread hasher = new Thread(this::hashInput, "backup-sha256");
+		hasher.setDaemon(true);
+		hasher.start();
+	}
+
+	private void readInput() {
+		try {
+			while(true) {
+				final byte[] data = this.blocks.take();
+				int filled = 0;
+				int readed;
+				while(filled < data.length && (readed = this.in.read(data, filled, data.length - filled)) != -1) {
+					filled += readed;
+				}
+
+				if(filled > 0)
+					this.read.put(new Block(data, filled, null));
+				if(filled < data.length)
+					break;
+			}
+			this.read.put(new Block(null, -1, null));
+		} catch (final IOException e) {
+			this.read.put(new Block(null, -1, e));
+		}
+	}
+
+	private void hashInput() {
+		while(true) {
+			final Block block = this.read.take();
+			if(block.length == -1) {
+				this.sha256 = this.totalSHA.digest();
+				this.hashed.put(block);
+				return;
+			}
+
+			this.totalSHA.update(block.data, 0, block.length);
+			this.length += block.length;
+			this.hashed.put(block);
+		}
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if(len == 0)
+			return 0;
+
+		while(this.current == null || this.position == this.current.length) {
+			if(this.current != null)
+				this.blocks.release(this.current.data);
+			this.current = this.hashed.take();
+			this.position = 0;
+		}
+		if(this.current.length == -1) {
+			if(this.current.error != null)
+				throw this.current.error;
+			return -1;
+		}
+
+		final int count = Math.min(len, this.current.length - this.position);
+		System.arraycopy(this.current.data, this.position, b, off, count);
+		this.position += count;
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] b = new byte[1];
+		return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	/**
+	 * Only valid after the end of the input was read.
+	 */
+	long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * Only valid after the end of the input was read.
+	 */
+	byte[] getSha256() {
+		return this.sha256;
+	}
+
+	void printStats() {
+		this.read.printStats();
+		this.hashed.printStats();
+	}
+
+	private static final class Block {
+		final byte[] data;
+		/** -1 marks the end of the input */
+		final int length;
+		final IOException error;
+
+		Block(final byte[] data, final int length, final IOException error) {
+			this.data = data;
+			this.length = length;
+			this.error = error;
+		}
+	}
+}
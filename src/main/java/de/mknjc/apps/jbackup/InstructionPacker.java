@@ -0,0 +1,221 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Takes the instructions of one level and packs them into the next level while they are produced.
+ *
+ * The instructions are kept in memory until they exceed {@link #THRESHOLD}, then the next level is started on its
+ * own thread and everything written is piped to it. So all levels run at the same time as the backup itself.
+ *
+ * With very small chunks an instruction isn't much smaller than its chunk and packing stops to shrink the levels.
+ * So at most {@link #MAX_LEVELS} levels are started, and each level keeps a copy of its instructions up to
+ * {@link #KEEP}. The top level is the first one which stays below the threshold or which the next level didn't
+ * make smaller, if its copy is complete.
+ */
+final class InstructionPacker extends OutputStream {
+	/** a level above this size is packed into the next one */
+	static final int THRESHOLD = 1 << 12;
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final int QUEUE_BLOCKS = 8;
+	/** no further level is started on top of this one */
+	private static final int MAX_LEVELS = 8;
+	/** the instructions of a level are kept up to this size in case the next level doesn't shrink them */
+	private static final int KEEP = 1 << 20;
+	/** the end of the instructions */
+	private static final byte[] END = new byte[0];
+
+	private final Store store;
+	private final int level;
+
+	/** the instructions of this level, null once they got larger than {@link #KEEP} and are packed */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	/** the bytes written to this level */
+	private long size;
+
+	private StageQueue<byte[]> pipe;
+	private byte[] block;
+	private int blockLength;
+	private InstructionPacker next;
+	private Thread nextThread;
+	private volatile Throwable failure;
+
+	InstructionPacker(final Store store) {
+		this(store, 0);
+	}
+
+	private InstructionPacker(final Store store, final int level) {
+		this.store = store;
+		this.level = level;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		this.write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException {
+		this.size += len;
+		if(this.pending != null) {
+			if(this.next != null && this.size > InstructionPacker.KEEP)
+				this.pending = null;
+			else
+				this.pending.write(b, off, len);
+		}
+
+		if(this.next == null) {
+			if(this.size > InstructionPacker.THRESHOLD) {
+				if(this.level + 1 < InstructionPacker.MAX_LEVELS)
+					this.startNextLevel();
+				else if(this.size - len <= InstructionPacker.THRESHOLD)
+					System.err.println("Instructions are still above " + InstructionPacker.THRESHOLD + " bytes after " + InstructionPacker.MAX_LEVELS + " levels, packing stops");
+			}
+			return;
+		}
+
+		while(len > 0) {
+			final int count = Math.min(len, this.block.length - this.blockLength);
+			System.arraycopy(b, off, this.block, this.blockLength, count);
+			this.blockLength += count;
+			off += count;
+			len -= count;
+			if(this.blockLength == this.block.length)
+				this.sendBlock();
+		}
+	}
+
+	private void startNextLevel() throws IOException {
+		this.pipe = new StageQueue<>("level " + (this.level + 1), InstructionPacker.QUEUE_BLOCKS);
+		this.next = new InstructionPacker(this.store, this.level + 1);
+		this.nextThread = new Thread(this::packNextLevel, "backup-level-" + (this.level + 1));
+		this.nextThread.setDaemon(true);
+		this.nextThread.start();
+
+		this.block = new byte[InstructionPacker.BLOCK_SIZE];
+		this.blockLength = 0;
+		// the pending instructions include the ones just written
+		final byte[] data = this.pending.toByteArray();
+		for (int off = 0; off < data.length; ) {
+			final int count = Math.min(data.length - off, this.block.length - this.blockLength);
+			System.arraycopy(data, off, this.block, this.blockLength, count);
+			this.blockLength += count;
+			off += count;
+			if(this.blockLength == this.block.length)
+				this.sendBlock();
+		}
+	}
+
+	private void packNextLevel() {
+		try {
+			try (InstructionPacker os = this.next) {
+				new BackupCreator(new PipeInputStream(this.pipe), this.store, os).run();
+			}
+		} catch (final Throwable e) {
+			this.failure = e;
+			// make room for the writer, it fails on its next block
+			while(this.pipe.poll() != null) {
+				// drop
+			}
+		}
+	}
+
+	private void sendBlock() throws IOException {
+		this.checkFailure();
+		if(this.blockLength == 0)
+			return;
+		this.pipe.put(Arrays.copyOf(this.block, this.blockLength));
+		this.blockLength = 0;
+	}
+
+	private void checkFailure() throws IOException {
+		if(this.failure != null)
+			throw new IOException("Can't pack the instructions of level " + (this.level + 1), this.failure);
+	}
+
+	/**
+	 * Waits until all levels above this one are packed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(this.nextThread == null)
+			return;
+
+		this.sendBlock();
+		this.pipe.put(InstructionPacker.END);
+		while(this.nextThread.isAlive()) {
+			try {
+				this.nextThread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+		this.checkFailure();
+		this.nextThread = null;
+		this.pipe.printStats();
+	}
+
+	/**
+	 * @return the level whose instructions are stored in the backup, only valid after {@link #close()}
+	 */
+	private InstructionPacker top() {
+		// packing is stopped at the first level which the next one doesn't make smaller
+		if(this.next == null || (this.pending != null && this.next.size >= this.size))
+			return this;
+		return this.next.top();
+	}
+
+	/**
+	 * @return the number of levels packed on top of the first one
+	 */
+	int getIterations() {
+		return this.top().level - this.level;
+	}
+
+	/**
+	 * @return the instructions of the top level, only valid after {@link #close()}
+	 */
+	ByteString getInstructions() {
+		return ByteString.copyFrom(this.top().pending.toByteArray());
+	}
+
+	private static final class PipeInputStream extends InputStream {
+		private final StageQueue<byte[]> pipe;
+		private byte[] current = new byte[0];
+		private int position;
+
+		PipeInputStream(final StageQueue<byte[]> pipe) {
+			this.pipe = pipe;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if(len == 0)
+				return 0;
+
+			while(this.position == this.current.length) {
+				if(this.current == InstructionPacker.END)
+					return -1;
+				this.current = this.pipe.take();
+				this.position = 0;
+			}
+
+			final int count = Math.min(len, this.current.length - this.position);
+			System.arraycopy(this.current, this.position, b, off, count);
+			this.position += count;
+			return count;
+		}
+
+		@Override
+		public int read() {
+			final byte[] b = new byte[1];
+			return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+	}
+}
@@ -1,29 +1,64 @@
 package de.mknjc.apps.jbackup;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Index cache with linear probing over ChunkID references.
+ *
+ * The table grows incrementally: once it is 3/4 full a twice as large table takes all new chunks and every insert
+ * moves a few slots of the old table over. The old table stays untouched until all slots are moved, so lookups
+ * check the new table and then probe the old one as before. The slots are kept in segments which are allocated
+ * on their first insert, so the table isn't limited by the maximum array length.
+ */
 public class LinearArrayIndexCache implements IndexCache {
-	private ChunkID[] chunks;
-	private int chunkCount;
-	private int mask;
+	/** old slots moved per insert, the migration has to be done before the new table is 3/4 full */
+	private static final int MIGRATION_STEP = 16;
+
+	private Table table;
+	/** the previous table while it is migrated */
+	private Table oldTable;
+	private long migrated;
+	private long chunkCount;
 
 	public LinearArrayIndexCache(ChunkID[] ids) {
+		this(ids, 1);
+	}
+
+	/**
+	 * Fills the table from several threads, each one fills the slots of its own partitions of the table. The chunks
+	 * which probing sequence runs out of their partition are inserted afterwards.
+	 */
+	public LinearArrayIndexCache(final ChunkID[] ids, final int threads) {
 		this.chunkCount = ids.length;
 		int i;
-		for(i = 20; i < 31; i++) {
-			if((1 << i) > this.chunkCount) {
+		for(i = 20; i < 62; i++) {
+			if((1L << i) * 3 / 4 > this.chunkCount) {
 				break;
 			}
 		}
 
-		this.chunks = new ChunkID[1<<i];
-		mask = (this.chunks.length - 1);
+		final Table table = new Table(i);
+		this.table = table;
 
-		for (final ChunkID chunkID : ids) {
-			int idx = (int)chunkID.getRollingHash() & mask;
-			while(chunks[idx] != null) {
-				idx = (idx + 1) & mask;
+		final IndexPartitions partitions = new IndexPartitions(ids, table.bits, Table.SEGMENT_BITS, threads);
+		final ChunkID[] chunks = partitions.getChunks();
+		final List<List<ChunkID>> overflows = new ArrayList<>(Collections.nCopies(partitions.getPartitions(), null));
+		partitions.forEach(partition -> {
+			final long partitionEnd = partitions.getPartitionEnd(partition, table.bits);
+			final List<ChunkID> overflow = new ArrayList<>();
+			for (int c = partitions.getStart(partition); c < partitions.getEnd(partition); c++) {
+				if(!table.insertInPartition(chunks[c], partitionEnd))
+					overflow.add(chunks[c]);
+			}
+			overflows.set(partition, overflow);
+		});
+		for (final List<ChunkID> overflow : overflows) {
+			for (final ChunkID chunkID : overflow) {
+				table.insert(chunkID);
 			}
-
-			chunks[idx] = chunkID;
 		}
 		//printHistogram();
 	}
@@ -33,30 +68,19 @@ public class LinearArrayIndexCache implements IndexCache {
 	 */
 	@Override
 	public boolean hasChunk(long rollingHash) {
-		int idx = (int)rollingHash & mask;
-		ChunkID id;
-		while((id = chunks[idx]) != null) {
-			if(id.getRollingHash() == rollingHash)
-				return true;
-
-			idx = (idx + 1) & mask;
-		}
-		return false;
+		if(table.find(rollingHash, 0, 0, false) != null)
+			return true;
+		return oldTable != null && oldTable.find(rollingHash, 0, 0, false) != null;
 	}
 	/* (non-Javadoc)
 	 * @see de.mknjc.apps.jbackup.IndexCacheI#hasChunkWithHash(long, long, long)
 	 */
 	@Override
 	public ChunkID hasChunkWithHash(long rollingHash, long shaHash0, long shaHash1) {
-		int idx = (int)rollingHash & mask;
-		ChunkID id;
-		while((id = chunks[idx]) != null) {
-			if(id.getRollingHash() == rollingHash && id.getHash0() == shaHash0 && id.getHash1() == shaHash1)
-				return id;
-
-			idx = (idx + 1) & mask;
-		}
-		return null;
+		final ChunkID id = table.find(rollingHash, shaHash0, shaHash1, true);
+		if(id != null || oldTable == null)
+			return id;
+		return oldTable.find(rollingHash, shaHash0, shaHash1, true);
 	}
 
 	/* (non-Javadoc)
@@ -64,29 +88,16 @@ public class LinearArrayIndexCache implements IndexCache {
 	 */
 	@Override
 	public void addChunk(ChunkID id) {
-		int idx = (int)id.getRollingHash() & mask;
-		while(chunks[idx] != null) {
-			idx = (idx + 1) & mask;
-		}
-
-		chunks[idx] = id;
-
+		table.insert(id);
 		this.chunkCount++;
 
-		if(this.chunkCount > this.chunks.length && this.chunks.length != 1<<30) {
+		if(oldTable != null) {
+			migrate();
+		} else if(this.chunkCount > table.threshold) {
 			System.err.println("Chunk resize " + this.chunkCount);
-			final ChunkID[] newChunks = new ChunkID[this.chunks.length<<1];
-			int newMask = (newChunks.length - 1);
-
-			for (final ChunkID chunkID : this.chunks) {
-				int newIdx = (int)chunkID.getRollingHash() & newMask;
-				while(newChunks[newIdx] != null) {
-					newIdx = (newIdx + 1) & newMask;
-				}
-				newChunks[newIdx] = chunkID;
-			}
-			this.chunks = newChunks;
-			this.mask = newMask;
+			oldTable = table;
+			table = new Table(oldTable.bits + 1);
+			migrated = 0;
 		}
 	}
 
@@ -94,5 +105,97 @@ public class LinearArrayIndexCache implements IndexCache {
 	public long count() {
 		return chunkCount;
 	}
-}
 
+	@Override
+	public void forEachRollingHash(LongConsumer consumer) {
+		table.forEachRollingHash(0, consumer);
+		if(oldTable != null)
+			oldTable.forEachRollingHash(migrated, consumer);
+	}
+
+	private void migrate() {
+		final long end = Math.min(migrated + MIGRATION_STEP, oldTable.mask + 1);
+		for(long slot = migrated; slot < end; slot++) {
+			final ChunkID id = oldTable.get(slot);
+			if(id != null)
+				table.insert(id);
+		}
+		migrated = end;
+
+		if(migrated == oldTable.mask + 1)
+			oldTable = null;
+	}
+
+	private static final class Table {
+		/** the smallest table is one segment */
+		private static final int SEGMENT_BITS = 20;
+		private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+		final int bits;
+		final long mask;
+		final long threshold;
+		/** null until the first chunk lands in the segment */
+		final ChunkID[][] segments;
+
+		Table(int bits) {
+			this.bits = bits;
+			this.mask = (1L << bits) - 1;
+			this.threshold = (1L << bits) * 3 / 4;
+			this.segments = new ChunkID[(int)(1L << (bits - SEGMENT_BITS))][];
+		}
+
+		ChunkID get(long slot) {
+			final ChunkID[] segment = segments[(int)(slot >>> SEGMENT_BITS)];
+			return segment == null ? null : segment[(int)slot & SEGMENT_MASK];
+		}
+
+		ChunkID find(long rollingHash, long shaHash0, long shaHash1, boolean compareHash) {
+			long idx = rollingHash & mask;
+			ChunkID id;
+			while((id = get(idx)) != null) {
+				if(id.getRollingHash() == rollingHash && (!compareHash || (id.getHash0() == shaHash0 && id.getHash1() == shaHash1)))
+					return id;
+
+				idx = (idx + 1) & mask;
+			}
+			return null;
+		}
+
+		void insert(ChunkID id) {
+			long idx = id.getRollingHash() & mask;
+			while(get(idx) != null) {
+				idx = (idx + 1) & mask;
+			}
+			set(idx, id);
+		}
+
+		/**
+		 * @return false if the probing sequence reached the end of the partition, the chunk isn't inserted then
+		 */
+		boolean insertInPartition(ChunkID id, long partitionEnd) {
+			long idx = id.getRollingHash() & mask;
+			while(get(idx) != null) {
+				idx++;
+				if(idx == partitionEnd)
+					return false;
+			}
+			set(idx, id);
+			return true;
+		}
+
+		private void set(long idx, ChunkID id) {
+			final int s = (int)(idx >>> SEGMENT_BITS);
+			if(segments[s] == null)
+				segments[s] = new ChunkID[1 << SEGMENT_BITS];
+			segments[s][(int)idx & SEGMENT_MASK] = id;
+		}
+
+		void forEachRollingHash(long fromSlot, LongConsumer consumer) {
+			for(long slot = fromSlot; slot <= mask; slot++) {
+				final ChunkID id = get(slot);
+				if(id != null)
+					consumer.accept(id.getRollingHash());
+			}
+		}
+	}
+}
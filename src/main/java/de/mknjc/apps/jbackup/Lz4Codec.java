@@ -0,0 +1,202 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fast codec for backups which have to be quick rather than small.
+ *
+ * The payload is one block in the LZ4 block format, the greedy single probe matching of the reference encoder.
+ * The block is preceded by the uncompressed and the compressed length as little endian ints, so this isn't the
+ * LZ4 frame format and zbackup can't read it.
+ */
+final class Lz4Codec implements Codec {
+	static final Lz4Codec INSTANCE = new Lz4Codec();
+
+	private static final int HASH_LOG = 14;
+	private static final int MIN_MATCH = 4;
+	/** the last literals of a block */
+	private static final int LAST_LITERALS = 5;
+	/** the last match starts this far before the end */
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 0xffff;
+
+	private Lz4Codec() {
+	}
+
+	@Override
+	public void compress(final byte[] data, final int offset, final int length, final int level, final OutputStream os) throws IOException {
+		final byte[] block = new byte[length + length / 255 + 16];
+		final int blockLength = Lz4Codec.compress(data, offset, length, block);
+
+		final byte[] header = new byte[8];
+		ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putInt(length).putInt(blockLength);
+		os.write(header);
+		os.write(block, 0, blockLength);
+	}
+
+	@Override
+	public void decompress(final InputStream is, final byte[] dst, final int offset, final int length) throws IOException {
+		final byte[] header = new byte[8];
+		Codec.readFully(is, header, 0, header.length);
+		final ByteBuffer hb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		if(hb.getInt() != length)
+			throw new IOException("Lz4 block has the wrong size");
+
+		final int blockLength = hb.getInt();
+		if(blockLength < 0 || blockLength > length + length / 255 + 16)
+			throw new IOException("Corrupt lz4 block");
+		final byte[] block = new byte[blockLength];
+		Codec.readFully(is, block, 0, blockLength);
+
+		try {
+			if(Lz4Codec.decompress(block, dst, offset, length) != offset + length)
+				throw new IOException("Lz4 block has the wrong size");
+		} catch (final IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt lz4 block", e);
+		}
+	}
+
+	/**
+	 * @return the length of the block written to out
+	 */
+	static int compress(final byte[] in, final int offset, final int length, final byte[] out) {
+		final ByteBuffer words = ByteBuffer.wrap(in).order(ByteOrder.LITTLE_ENDIAN);
+		final int[] table = new int[1 << Lz4Codec.HASH_LOG];
+		final int end = offset + length;
+		final int matchLimit = end - Lz4Codec.LAST_LITERALS;
+		final int mfLimit = end - Lz4Codec.MF_LIMIT;
+
+		int op = 0;
+		int anchor = offset;
+		int ip = offset;
+		// the table holds positions + 1, 0 is empty
+		while(ip < mfLimit) {
+			final int word = words.getInt(ip);
+			final int h = (word * 0x9e3779b1) >>> (32 - Lz4Codec.HASH_LOG);
+			int ref = table[h] - 1;
+			table[h] = ip + 1;
+
+			if(ref < 0 || ip - ref > Lz4Codec.MAX_DISTANCE || words.getInt(ref) != word) {
+				// skip faster through data without matches
+				ip += 1 + ((ip - anchor) >> 6);
+				continue;
+			}
+
+			while(ip > anchor && ref > offset && in[ip - 1] == in[ref - 1]) {
+				ip--;
+				ref--;
+			}
+			final int matchLength = Lz4Codec.MIN_MATCH + Lz4Codec.count(words, ip + Lz4Codec.MIN_MATCH, ref + Lz4Codec.MIN_MATCH, matchLimit);
+
+			op = Lz4Codec.writeSequence(in, anchor, ip - anchor, out, op, ip - ref, matchLength);
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		// the last sequence has only literals
+		return Lz4Codec.writeSequence(in, anchor, end - anchor, out, op, 0, 0);
+	}
+
+	private static int writeSequence(final byte[] in, final int literals, final int literalLength, final byte[] out, int op, final int distance, final int matchLength) {
+		final int token = op++;
+		out[token] = (byte)(Math.min(literalLength, 15) << 4);
+		op = Lz4Codec.writeLength(out, op, literalLength - 15);
+		System.arraycopy(in, literals, out, op, literalLength);
+		op += literalLength;
+
+		if(matchLength == 0)
+			return op;
+
+		out[op++] = (byte)distance;
+		out[op++] = (byte)(distance >>> 8);
+		out[token] |= Math.min(matchLength - Lz4Codec.MIN_MATCH, 15);
+		return Lz4Codec.writeLength(out, op, matchLength - Lz4Codec.MIN_MATCH - 15);
+	}
+
+	private static int writeLength(final byte[] out, int op, int rest) {
+		if(rest < 0)
+			return op;
+		while(rest >= 255) {
+			out[op++] = (byte)255;
+			rest -= 255;
+		}
+		out[op++] = (byte)rest;
+		return op;
+	}
+
+	/**
+	 * @return the number of equal bytes at ip and the earlier ref, ip + count stays below limit
+	 */
+	static int count(final ByteBuffer words, final int ip, final int ref, final int limit) {
+		int i = 0;
+		while(ip + i + 8 <= limit) {
+			final long diff = words.getLong(ip + i) ^ words.getLong(ref + i);
+			if(diff != 0)
+				return i + (Long.numberOfTrailingZeros(diff) >>> 3);
+			i += 8;
+		}
+		while(ip + i < limit && words.get(ip + i) == words.get(ref + i)) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the end of the decompressed data in dst
+	 */
+	static int decompress(final byte[] in, final byte[] dst, final int offset, final int length) throws IOException {
+		final int end = offset + length;
+		int ip = 0;
+		int op = offset;
+
+		while(true) {
+			final int token = in[ip++] & 0xff;
+
+			int literalLength = token >>> 4;
+			if(literalLength == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xff;
+					literalLength += b;
+				} while(b == 255);
+			}
+			if(literalLength > end - op)
+				throw new IOException("Corrupt lz4 block");
+			System.arraycopy(in, ip, dst, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+
+			if(ip == in.length)
+				return op;
+
+			final int distance = (in[ip] & 0xff) | (in[ip + 1] & 0xff) << 8;
+			ip += 2;
+			int matchLength = token & 15;
+			if(matchLength == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xff;
+					matchLength += b;
+				} while(b == 255);
+			}
+			matchLength += Lz4Codec.MIN_MATCH;
+
+			if(distance == 0 || distance > op - offset || matchLength > end - op)
+				throw new IOException("Corrupt lz4 block");
+
+			if(distance >= matchLength) {
+				System.arraycopy(dst, op - distance, dst, op, matchLength);
+				op += matchLength;
+			} else {
+				// overlapping, repeats the last distance bytes
+				for (int i = 0; i < matchLength; i++, op++) {
+					dst[op] = dst[op - distance];
+				}
+			}
+		}
+	}
+}
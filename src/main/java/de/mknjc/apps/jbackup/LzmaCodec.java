@@ -0,0 +1,78 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SingleXZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * The xz streams of zbackup.
+ *
+ * With several threads the payload is split into blocks which are compressed at once, see {@link XzBlocks}.
+ */
+final class LzmaCodec implements Codec {
+	static final LzmaCodec INSTANCE = new LzmaCodec();
+	/** the smallest block compressed on its own, smaller blocks cost too much of the ratio */
+	private static final int MIN_BLOCK = 1 << 18;
+
+	private LzmaCodec() {
+	}
+
+	@Override
+	public void compress(final byte[] data, final int offset, final int length, final int level, final OutputStream os) throws IOException {
+		// a dictionary larger than the data is never used, but the encoder and the decoder allocate it
+		final LZMA2Options options = new LZMA2Options(level);
+		if(options.getDictSize() > length)
+			options.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN, length));
+
+		final XZOutputStream xz = new XZOutputStream(os, options); // we can't close this stream because it will close the parent stream too
+		xz.write(data, offset, length);
+		xz.finish();
+	}
+
+	@Override
+	public void compress(final byte[] data, final int offset, final int length, final int level, final OutputStream os, final Executor executor, final int threads) throws IOException {
+		final int blocks = Math.min(threads, length / LzmaCodec.MIN_BLOCK);
+		if(blocks <= 1) {
+			this.compress(data, offset, length, level, os);
+			return;
+		}
+
+		final int blockSize = (length + blocks - 1) / blocks;
+		final List<Callable<byte[]>> tasks = new ArrayList<>(blocks);
+		for (int i = 0; i < blocks; i++) {
+			final int start = i * blockSize;
+			final int end = Math.min(length, start + blockSize);
+			tasks.add(() -> {
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream((end - start) / 2);
+				this.compress(data, offset + start, end - start, level, baos);
+				return baos.toByteArray();
+			});
+		}
+		XzBlocks.join(Codec.runAll(tasks, executor), os);
+	}
+
+	@Override
+	public void decompress(final InputStream is, final byte[] dst, final int offset, final int length, final Executor executor) throws IOException {
+		if(executor == null)
+			this.decompress(is, dst, offset, length);
+		else
+			XzBlocks.decompress(is, dst, offset, length, executor);
+	}
+
+	@Override
+	public void decompress(final InputStream is, final byte[] dst, final int offset, final int length) throws IOException {
+		final InputStream cis = new SingleXZInputStream(is);
+		Codec.readFully(cis, dst, offset, length);
+		if(cis.read() != -1)
+			throw new IOException("Unknown data at the end of lzma stream");
+	}
+}
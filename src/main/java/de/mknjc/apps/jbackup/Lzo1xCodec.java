@@ -0,0 +1,265 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The lzo1x_1 compression of zbackup in plain java.
+ *
+ * Like zbackup the payload is compressed at once and preceded by its uncompressed size as a varint. The encoder is
+ * the greedy matching of lzo1x_1, the decoder reads any LZO1X stream up to its end marker and nothing behind it.
+ * The framing isn't verified against bundles written by zbackup yet, zbackup may split the payload into several
+ * blocks. Until verify-lzo.sh passed against a real zbackup the codec is only used to read bundles, see
+ * {@link Codec#forWriting(String)}.
+ */
+final class Lzo1xCodec implements Codec {
+	static final Lzo1xCodec INSTANCE = new Lzo1xCodec();
+
+	private static final int D_BITS = 14;
+	private static final int M2_MAX_LEN = 8;
+	private static final int M2_MAX_OFFSET = 0x0800;
+	private static final int M3_MAX_OFFSET = 0x4000;
+	private static final int M4_MAX_OFFSET = 0xbfff;
+	private static final int M3_MARKER = 32;
+	private static final int M4_MARKER = 16;
+	/** the last instruction, a M4 match with distance 0x4000 */
+	private static final byte[] END = { Lzo1xCodec.M4_MARKER | 1, 0, 0 };
+
+	private Lzo1xCodec() {
+	}
+
+	@Override
+	public void compress(final byte[] data, final int offset, final int length, final int level, final OutputStream os) throws IOException {
+		for (long size = length; ; size >>>= 7) {
+			if(size < 0x80) {
+				os.write((int)size);
+				break;
+			}
+			os.write((int)(size & 0x7f) | 0x80);
+		}
+
+		final byte[] out = new byte[length + length / 16 + 64 + 3];
+		os.write(out, 0, Lzo1xCodec.compress(data, offset, length, out));
+	}
+
+	@Override
+	public void decompress(final InputStream is, final byte[] dst, final int offset, final int length) throws IOException {
+		long size = 0;
+		for (int shift = 0; ; shift += 7) {
+			final int b = Lzo1xCodec.next(is);
+			size |= (long)(b & 0x7f) << shift;
+			if(b < 0x80)
+				break;
+			if(shift > 56)
+				throw new IOException("Corrupt lzo size");
+		}
+		if(size != length)
+			throw new IOException("Lzo stream has the wrong size");
+
+		if(Lzo1xCodec.decode(is, dst, offset, length) != offset + length)
+			throw new IOException("Lzo stream has the wrong size");
+	}
+
+	/**
+	 * @return the length of the stream written to out
+	 */
+	static int compress(final byte[] in, final int offset, final int length, final byte[] out) {
+		final ByteBuffer words = ByteBuffer.wrap(in).order(ByteOrder.LITTLE_ENDIAN);
+		final int[] dict = new int[1 << Lzo1xCodec.D_BITS];
+		final int end = offset + length;
+		// like lzo1x_1 the last bytes are always literals
+		final int ipEnd = end - Lzo1xCodec.M2_MAX_LEN - 5;
+
+		int op = 0;
+		int anchor = offset;
+		int ip = offset;
+		// the dictionary holds positions + 1, 0 is empty
+		while(ip < ipEnd) {
+			final int word = words.getInt(ip);
+			final int h = (word * 0x1824429d) >>> (32 - Lzo1xCodec.D_BITS);
+			final int pos = dict[h] - 1;
+			dict[h] = ip + 1;
+
+			if(pos < 0 || ip - pos > Lzo1xCodec.M4_MAX_OFFSET || words.getInt(pos) != word) {
+				ip += 1 + ((ip - anchor) >> 5);
+				continue;
+			}
+
+			op = Lzo1xCodec.writeLiterals(in, anchor, ip - anchor, out, op);
+
+			final int matchLength = 4 + Lz4Codec.count(words, ip + 4, pos + 4, end);
+			op = Lzo1xCodec.writeMatch(out, op, ip - pos, matchLength);
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		op = Lzo1xCodec.writeLiterals(in, anchor, end - anchor, out, op);
+		System.arraycopy(Lzo1xCodec.END, 0, out, op, Lzo1xCodec.END.length);
+		return op + Lzo1xCodec.END.length;
+	}
+
+	private static int writeLiterals(final byte[] in, final int literals, final int count, final byte[] out, int op) {
+		if(count == 0)
+			return op;
+
+		if(op == 0 && count <= 238) {
+			out[op++] = (byte)(17 + count);
+		} else if(count <= 3) {
+			// in the low bits of the last match
+			out[op - 2] |= count;
+		} else if(count <= 18) {
+			out[op++] = (byte)(count - 3);
+		} else {
+			out[op++] = 0;
+			op = Lzo1xCodec.writeLength(out, op, count - 18);
+		}
+		System.arraycopy(in, literals, out, op, count);
+		return op + count;
+	}
+
+	private static int writeMatch(final byte[] out, int op, int distance, int length) {
+		if(length <= Lzo1xCodec.M2_MAX_LEN && distance <= Lzo1xCodec.M2_MAX_OFFSET) {
+			distance -= 1;
+			out[op++] = (byte)(((length - 1) << 5) | ((distance & 7) << 2));
+			out[op++] = (byte)(distance >>> 3);
+			return op;
+		}
+
+		if(distance <= Lzo1xCodec.M3_MAX_OFFSET) {
+			distance -= 1;
+			if(length <= 33) {
+				out[op++] = (byte)(Lzo1xCodec.M3_MARKER | (length - 2));
+			} else {
+				out[op++] = Lzo1xCodec.M3_MARKER;
+				op = Lzo1xCodec.writeLength(out, op, length - 33);
+			}
+		} else {
+			distance -= 0x4000;
+			if(length <= 9) {
+				out[op++] = (byte)(Lzo1xCodec.M4_MARKER | ((distance >>> 11) & 8) | (length - 2));
+			} else {
+				out[op++] = (byte)(Lzo1xCodec.M4_MARKER | ((distance >>> 11) & 8));
+				op = Lzo1xCodec.writeLength(out, op, length - 9);
+			}
+		}
+		out[op++] = (byte)(distance << 2);
+		out[op++] = (byte)(distance >>> 6);
+		return op;
+	}
+
+	/**
+	 * Writes a length above the length bits of an instruction, as zeros for 255 and the rest.
+	 */
+	private static int writeLength(final byte[] out, int op, int rest) {
+		while(rest > 255) {
+			out[op++] = 0;
+			rest -= 255;
+		}
+		out[op++] = (byte)rest;
+		return op;
+	}
+
+	/**
+	 * @return the end of the decompressed data in dst
+	 */
+	static int decode(final InputStream is, final byte[] dst, final int offset, final int length) throws IOException {
+		final int end = offset + length;
+		int op = offset;
+		// the literals copied after the last instruction, 4 for a literal run
+		int state = 0;
+
+		int t = Lzo1xCodec.next(is);
+		if(t > 17) {
+			op = Lzo1xCodec.copyLiterals(is, dst, op, end, t - 17);
+			state = Math.min(t - 17, 4);
+			t = Lzo1xCodec.next(is);
+		}
+
+		while(true) {
+			int distance;
+			int matchLength;
+			int literals;
+
+			if(t < 16) {
+				if(state == 0) {
+					final int count = (t == 0 ? 15 + Lzo1xCodec.readLength(is) : t) + 3;
+					op = Lzo1xCodec.copyLiterals(is, dst, op, end, count);
+					state = 4;
+					t = Lzo1xCodec.next(is);
+					continue;
+				}
+				// a short match, it reaches further behind a literal run
+				distance = 1 + (t >>> 2) + (Lzo1xCodec.next(is) << 2);
+				if(state == 4) {
+					distance += Lzo1xCodec.M2_MAX_OFFSET;
+					matchLength = 3;
+				} else {
+					matchLength = 2;
+				}
+				literals = t & 3;
+			} else if(t >= 64) {
+				distance = 1 + ((t >>> 2) & 7) + (Lzo1xCodec.next(is) << 3);
+				matchLength = (t >>> 5) + 1;
+				literals = t & 3;
+			} else if(t >= 32) {
+				matchLength = t & 31;
+				if(matchLength == 0)
+					matchLength = 31 + Lzo1xCodec.readLength(is);
+				matchLength += 2;
+				final int low = Lzo1xCodec.next(is);
+				distance = 1 + ((low | Lzo1xCodec.next(is) << 8) >>> 2);
+				literals = low & 3;
+			} else {
+				matchLength = t & 7;
+				if(matchLength == 0)
+					matchLength = 7 + Lzo1xCodec.readLength(is);
+				matchLength += 2;
+				final int low = Lzo1xCodec.next(is);
+				distance = ((t & 8) << 11) + ((low | Lzo1xCodec.next(is) << 8) >>> 2);
+				if(distance == 0)
+					return op;
+				distance += 0x4000;
+				literals = low & 3;
+			}
+
+			if(distance > op - offset || matchLength > end - op)
+				throw new IOException("Corrupt lzo stream");
+			// byte by byte, a match may overlap itself
+			for (int i = 0; i < matchLength; i++, op++) {
+				dst[op] = dst[op - distance];
+			}
+
+			op = Lzo1xCodec.copyLiterals(is, dst, op, end, literals);
+			state = literals;
+			t = Lzo1xCodec.next(is);
+		}
+	}
+
+	private static int copyLiterals(final InputStream is, final byte[] dst, final int op, final int end, final int count) throws IOException {
+		if(count > end - op)
+			throw new IOException("Corrupt lzo stream");
+		Codec.readFully(is, dst, op, count);
+		return op + count;
+	}
+
+	private static int readLength(final InputStream is) throws IOException {
+		int length = 0;
+		int b;
+		while((b = Lzo1xCodec.next(is)) == 0) {
+			length += 255;
+			if(length < 0)
+				throw new IOException("Corrupt lzo stream");
+		}
+		return length + b;
+	}
+
+	private static int next(final InputStream is) throws IOException {
+		final int b = is.read();
+		if(b == -1)
+			throw new IOException("Short read from data");
+		return b;
+	}
+}
@@ -2,16 +2,21 @@ package de.mknjc.apps.jbackup;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import com.google.protobuf.ByteString;
 import de.mknjc.apps.zbackup.proto.Zbackup.BackupInfo;
 import de.mknjc.apps.zbackup.proto.Zbackup.BackupInstruction;
 
@@ -27,7 +32,11 @@ public class Main {
 	public static void main(final String[] args) throws InterruptedException, NoSuchAlgorithmException, IOException {
 		boolean actionBackup = false;
 		boolean actionRestore = false;
+		String indexAction = null;
 		Path backupPath = null;
+		Path indexStorePath = null;
+		Path inputPath = null;
+		Path outputPath = null;
 		final List<String> storeConfig   = new ArrayList<>();
 		final List<String> runtimeConfig = new ArrayList<>();
 
@@ -42,6 +51,16 @@ public class Main {
 				actionRestore = true;
 				backupPath = Paths.get(args[++i]).toAbsolutePath().normalize();
 				break;
+			case "index":
+				indexAction = args[++i];
+				indexStorePath = Paths.get(args[++i]).toAbsolutePath().normalize();
+				break;
+			case "-i":
+				inputPath = Paths.get(args[++i]);
+				break;
+			case "-f":
+				outputPath = Paths.get(args[++i]);
+				break;
 			case "-o":
 				storeConfig.add(args[++i]);
 				break;
@@ -54,6 +73,24 @@ public class Main {
 			}
 		}
 
+		if(indexAction != null) {
+			switch (indexAction) {
+			case "compact":
+				new IndexCompactor(indexStorePath).compact();
+				break;
+			case "rebuild":
+				new IndexRebuilder(indexStorePath, Main.getIndexThreads(runtimeConfig)).rebuild();
+				break;
+			case "verify":
+				Main.verifySnapshot(indexStorePath);
+				break;
+			default:
+				Main.Usage();
+				break;
+			}
+			return;
+		}
+
 		if(!(actionBackup || actionRestore)) {
 			Main.Usage();
 			return;
@@ -63,25 +100,19 @@ public class Main {
 			final Path storePath = Main.getStorePath(backupPath);
 
 			final ZbackupStore store = new ZbackupStore(storePath, storeConfig, runtimeConfig);
-			final BackupCreator bc = new BackupCreator(System.in, store);
+			// a regular file as input is mapped and cut in parallel
+			final FileChannel input = inputPath != null ? FileChannel.open(inputPath, StandardOpenOption.READ) : new FileInputStream(FileDescriptor.in).getChannel();
+
+			// the levels of instructions are packed while the backup runs
+			final InstructionPacker packer = new InstructionPacker(store);
+			// an input file which can't be mapped (empty, a fifo or a device) is still read, only without a path stdin is
+			final InputStream stream = inputPath != null ? Channels.newInputStream(input) : System.in;
+			final BackupCreator bc = Main.isSeekable(input) ? new BackupCreator(input, store, packer) : new BackupCreator(stream, store, packer);
 			bc.run();
+			packer.close();
 			bc.printStats();
 
-			ByteString instructions = bc.getBackupInstructions();
-			int instructionLength = instructions.size();
-			int iterations = 0;
-
-			while(true) {
-				iterations++;
-				final BackupCreator instructionpacker = new BackupCreator(instructions.newInput(), store);
-				instructionpacker.run();
-				instructions = instructionpacker.getBackupInstructions();
-				if(instructions.size() >= instructionLength)
-					break;
-				instructionLength = instructions.size();
-			}
-
-			store.writeInstructions(instructions, bc.getInputLength(), bc.getSha256Hash(), iterations, backupPath);
+			store.writeInstructions(packer.getInstructions(), bc.getInputLength(), bc.getSha256Hash(), packer.getIterations(), backupPath);
 
 			store.finish();
 		}
@@ -112,9 +143,12 @@ public class Main {
 				instructions.add(BackupInstruction.parseDelimitedFrom(instStream));
 			}
 
-			final SHA256OutputStream checkedOs = new SHA256OutputStream(System.out);
+			// a restore into a file leaves holes for the zeros
+			final SHA256OutputStream checkedOs = new SHA256OutputStream(outputPath != null ? new SparseFileOutputStream(outputPath) : System.out);
 
 			BackupRestorer.restore(instructions, store, checkedOs);
+			if(outputPath != null)
+				checkedOs.close();
 
 			store.finish();
 
@@ -134,6 +168,44 @@ public class Main {
 
 
 
+	/**
+	 * Reads the whole index snapshot, a damaged one is removed so the next backup writes a new one.
+	 */
+	private static void verifySnapshot(final Path store) throws IOException {
+		final Path snapshot = IndexSnapshot.of(store);
+		if(!Files.isRegularFile(snapshot)) {
+			System.err.println("No index snapshot in " + store);
+			return;
+		}
+
+		if(IndexSnapshot.verify(snapshot)) {
+			System.err.println("Index snapshot is fine");
+		} else {
+			System.err.println("Index snapshot is damaged, removed it");
+			Files.delete(snapshot);
+		}
+	}
+
+	/**
+	 * @return the -O index-threads option for the actions which don't open the store
+	 */
+	private static int getIndexThreads(final List<String> runtimeConfig) {
+		for (final String option : runtimeConfig) {
+			if(option.startsWith("index-threads="))
+				return Integer.parseInt(option.substring("index-threads=".length()));
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static boolean isSeekable(final FileChannel channel) {
+		try {
+			// pipes have no size
+			return channel.size() > channel.position();
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
 	private static Path getStorePath(final Path backupPath) {
 		Path storePath = backupPath;
 		while(true) {
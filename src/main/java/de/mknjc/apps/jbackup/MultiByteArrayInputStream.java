@@ -20,13 +20,13 @@ public class MultiByteArrayInputStream extends InputStream {
 
 		final int ret = this.arrays[this.arr][this.pos++] & 0xff;
 		if(this.pos >= this.arrays[this.arr].length) {
-
+			this.arr++; this.pos = 0;
 		}
 		return ret;
 	}
 
 	@Override
-	public int read(final byte[] b, final int off, int len) throws IOException {
+	public int read(final byte[] b, int off, int len) throws IOException {
 		if (b == null) {
 			throw new NullPointerException();
 		} else if (off < 0 || len < 0 || len > b.length - off) {
@@ -39,9 +39,10 @@ public class MultiByteArrayInputStream extends InputStream {
 
 		final int startLength = len;
 		while(len > 0) {
-			final int thisRun = Math.min(this.arrays[this.arr].length, len);
+			final int thisRun = Math.min(this.arrays[this.arr].length - this.pos, len);
 			System.arraycopy(this.arrays[this.arr], this.pos, b, off, thisRun);
 			len -= thisRun;
+			off += thisRun;
 			this.pos += thisRun;
 			if(this.pos >= this.arrays[this.arr].length) {
 				this.arr++; this.pos = 0;
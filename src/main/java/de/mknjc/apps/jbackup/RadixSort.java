@@ -0,0 +1,41 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.Arrays;
+
+/**
+ * LSD radix sort over unsigned long keys, 16 bits per pass.
+ */
+final class RadixSort {
+	private RadixSort() {
+	}
+
+	/**
+	 * @return the permutation which sorts the first count keys, equal keys keep their order
+	 */
+	static int[] order(final long[] keys, final int count) {
+		int[] order = new int[count];
+		int[] next = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+
+		final int[] buckets = new int[(1 << 16) + 1];
+		for (int shift = 0; shift < 64; shift += 16) {
+			Arrays.fill(buckets, 0);
+			for (int i = 0; i < count; i++) {
+				buckets[(int)((keys[i] >>> shift) & 0xffff) + 1]++;
+			}
+			for (int b = 0; b < (1 << 16); b++) {
+				buckets[b + 1] += buckets[b];
+			}
+			for (int i = 0; i < count; i++) {
+				final int idx = order[i];
+				next[buckets[(int)((keys[idx] >>> shift) & 0xffff)]++] = idx;
+			}
+			final int[] tmp = order;
+			order = next;
+			next = tmp;
+		}
+		return order;
+	}
+}
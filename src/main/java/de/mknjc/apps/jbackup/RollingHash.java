@@ -1,5 +1,14 @@
 package de.mknjc.apps.jbackup;
 
+import java.nio.ByteBuffer;
+import java.util.function.LongPredicate;
+
+/**
+ * The rolling hash of zbackup, a polynomial with base 257 over the bytes of the window.
+ *
+ * Besides the per byte methods there are bulk versions which work on a whole range of an array or a buffer in
+ * one loop, they give the same digests.
+ */
 public class RollingHash {
 	long factor = 0;
 	long nextFactor = 1;
@@ -12,22 +21,115 @@ public class RollingHash {
 		this.value += ((long)b & 0xff);
 	}
 
+	/**
+	 * Rolls in buff[from, to).
+	 */
+	public void rollIn(final byte[] buff, final int from, final int to) {
+		long value = this.value;
+		long factor = this.factor;
+		long nextFactor = this.nextFactor;
+		for (int i = from; i < to; i++) {
+			value = (value << 8) + value + (buff[i] & 0xff);
+			factor = nextFactor;
+			nextFactor = (nextFactor << 8) + nextFactor;
+		}
+		this.value = value;
+		this.factor = factor;
+		this.nextFactor = nextFactor;
+	}
+
+	/**
+	 * Rolls in buff[from, to), the buffer position is not used.
+	 */
+	public void rollIn(final ByteBuffer buff, final int from, final int to) {
+		long value = this.value;
+		long factor = this.factor;
+		long nextFactor = this.nextFactor;
+		for (int i = from; i < to; i++) {
+			value = (value << 8) + value + (buff.get(i) & 0xff);
+			factor = nextFactor;
+			nextFactor = (nextFactor << 8) + nextFactor;
+		}
+		this.value = value;
+		this.factor = factor;
+		this.nextFactor = nextFactor;
+	}
+
 	public void rotate(final byte in, final byte out) {
 		this.value -= ((long)out & 0xff) * this.factor;
 		this.value = ( this.value << 8 ) + this.value; // value *= 257
 		this.value += ((long)in & 0xff);
 	}
 
+	/**
+	 * Rotates the bytes buff[from, to) into the window, the byte which leaves the window is the one window bytes
+	 * before. So the window has to be full and the bytes in front of from have to be the current window.
+	 *
+	 * Every position which digest the filter accepts is written to positions, the position is the end of the
+	 * window. The scan stops early when positions is full, the hash is then at the last position.
+	 *
+	 * @return the number of positions written
+	 */
+	public int rotate(final byte[] buff, final int from, final int to, final int window, final LongPredicate filter, final int[] positions) {
+		// (value - out * factor) * 257 == value * 257 - out * nextFactor
+		final long outFactor = this.nextFactor;
+		long value = this.value;
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			value = (value << 8) + value + (buff[i] & 0xff) - (buff[i - window] & 0xff) * outFactor;
+			if(filter.test(value + outFactor)) {
+				positions[count++] = i + 1;
+				if(count == positions.length)
+					break;
+			}
+		}
+		this.value = value;
+		return count;
+	}
+
+	/**
+	 * Like {@link #rotate(byte[], int, int, int, LongPredicate, int[])}, the buffer position is not used.
+	 */
+	public int rotate(final ByteBuffer buff, final int from, final int to, final int window, final LongPredicate filter, final int[] positions) {
+		final long outFactor = this.nextFactor;
+		long value = this.value;
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			value = (value << 8) + value + (buff.get(i) & 0xff) - (buff.get(i - window) & 0xff) * outFactor;
+			if(filter.test(value + outFactor)) {
+				positions[count++] = i + 1;
+				if(count == positions.length)
+					break;
+			}
+		}
+		this.value = value;
+		return count;
+	}
+
 	public long digest() {
 		return this.value + this.nextFactor;
 	}
 
-	public static long digest(final byte[] buff, int offset, int length) {
-		final RollingHash tmpHash = new RollingHash();
-		while(length-- != 0) {
-			tmpHash.rollIn(buff[offset++]);
-			if(offset == buff.length) offset = 0;
+	/**
+	 * The digest of buff[offset, offset + length) without creating a hash.
+	 */
+	public static long digest(final byte[] buff, final int offset, final int length) {
+		// starting at 1 gives value + nextFactor at the end
+		long value = 1;
+		for (int i = offset; i < offset + length; i++) {
+			value = (value << 8) + value + (buff[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * The digest of buff[offset, offset + length), the buffer position is not used.
+	 */
+	public static long digest(final ByteBuffer buff, final int offset, final int length) {
+		long value = 1;
+		for (int i = offset; i < offset + length; i++) {
+			value = (value << 8) + value + (buff.get(i) & 0xff);
 		}
-		return tmpHash.digest();
+		return value;
 	}
 }
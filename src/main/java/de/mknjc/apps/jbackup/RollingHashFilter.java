@@ -0,0 +1,192 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * A blocked bloom filter over rolling hashes.
+ *
+ * Each rolling hash only touches one 64 byte block, so a query costs at most one cache miss. The block is
+ * selected by the top bits of the rolling hash, like the home slot in {@link ByteBufferIndexCache}, so
+ * threads adding hashes of different table partitions never write the same block. The lookups are counted by
+ * the callers and added with {@link #countLookups(long, long)}, only the false positives, which cost an index
+ * lookup anyway, are counted here.
+ */
+public class RollingHashFilter {
+	private static final int WORDS_PER_BLOCK = 8;
+	private static final int BITS_PER_KEY = 6;
+	private static final int MAX_BLOCK_BITS = 24;
+	/** the largest filter, 1 GB */
+	static final long MAX_SIZE = 64L << RollingHashFilter.MAX_BLOCK_BITS;
+	/** the largest filter sized by the chunk count, it should still fit into the last level cache */
+	static final long CACHE_SIZE = 8 << 20;
+	/** the bytes written or read at once */
+	private static final int IO_SIZE = 1 << 20;
+
+	private final long[] words;
+	private final int blockBits;
+
+	// stats
+	private long queries;
+	private long hits;
+	private final LongAdder falsePositives = new LongAdder();
+
+	/**
+	 * @param size the filter size in bytes, rounded down to a power of two and at most {@link #MAX_SIZE}
+	 */
+	public RollingHashFilter(final long size) {
+		final int bits = RollingHashFilter.blockBits(size);
+		this.blockBits = bits;
+		this.words = new long[RollingHashFilter.WORDS_PER_BLOCK << bits];
+	}
+
+	private RollingHashFilter(final long[] words) {
+		this.blockBits = Integer.numberOfTrailingZeros(words.length / RollingHashFilter.WORDS_PER_BLOCK);
+		this.words = words;
+	}
+
+	/**
+	 * Reads a filter written with {@link #writeTo(FileChannel, CRC32)}.
+	 *
+	 * @param size the filter size in bytes
+	 */
+	static RollingHashFilter read(final FileChannel channel, final long position, final long size) throws IOException {
+		if(size < 64 || size > RollingHashFilter.MAX_SIZE || Long.bitCount(size) != 1)
+			throw new IOException("Invalid filter size " + size);
+
+		final long[] words = new long[(int)(size / Long.BYTES)];
+		final ByteBuffer buffer = ByteBuffer.allocate(RollingHashFilter.IO_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int word = 0; word < words.length;) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), (long)(words.length - word) * Long.BYTES));
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position + (long)word * Long.BYTES + buffer.position()) == -1)
+					throw new IOException("Unexpected EOF");
+			}
+			buffer.flip();
+			final int count = buffer.remaining() / Long.BYTES;
+			buffer.asLongBuffer().get(words, word, count);
+			word += count;
+		}
+		return new RollingHashFilter(words);
+	}
+
+	/**
+	 * Writes the words little endian at the position of the channel.
+	 *
+	 * @param checksum gets the written bytes
+	 */
+	void writeTo(final FileChannel channel, final CRC32 checksum) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(RollingHashFilter.IO_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int word = 0; word < this.words.length;) {
+			buffer.clear();
+			final int count = Math.min(buffer.capacity() / Long.BYTES, this.words.length - word);
+			buffer.asLongBuffer().put(this.words, word, count);
+			buffer.limit(count * Long.BYTES);
+			checksum.update(buffer);
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			word += count;
+		}
+	}
+
+	/**
+	 * @return the size of a filter created with the given size
+	 */
+	static long sizeOf(final long size) {
+		return (long)RollingHashFilter.WORDS_PER_BLOCK * Long.BYTES << RollingHashFilter.blockBits(size);
+	}
+
+	public void add(final long rollingHash) {
+		final int block = this.block(rollingHash);
+		long mixed = RollingHashFilter.mix(rollingHash);
+		for (int i = 0; i < RollingHashFilter.BITS_PER_KEY; i++) {
+			final int bit = (int)(mixed & 511);
+			this.words[block + (bit >>> 6)] |= 1L << bit;
+			mixed >>>= 9;
+		}
+	}
+
+	public boolean mightContain(final long rollingHash) {
+		final int block = this.block(rollingHash);
+		long mixed = RollingHashFilter.mix(rollingHash);
+		for (int i = 0; i < RollingHashFilter.BITS_PER_KEY; i++) {
+			final int bit = (int)(mixed & 511);
+			if((this.words[block + (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+			mixed >>>= 9;
+		}
+		return true;
+	}
+
+	/**
+	 * Records that a rolling hash which passed the filter isn't in the index.
+	 */
+	public void recordFalsePositive() {
+		this.falsePositives.increment();
+	}
+
+	/**
+	 * Adds the lookups of one caller.
+	 *
+	 * @param hits the lookups which were found in the index
+	 */
+	public synchronized void countLookups(final long queries, final long hits) {
+		this.queries += queries;
+		this.hits += hits;
+	}
+
+	/**
+	 * @return the number of blocks as power of two
+	 */
+	public int getBlockBits() {
+		return this.blockBits;
+	}
+
+	public long getSize() {
+		return (long)this.words.length * Long.BYTES;
+	}
+
+	public synchronized void printStats() {
+		final long queries = this.queries;
+		if(queries == 0)
+			return;
+
+		final long hits = this.hits;
+		final long passed = hits + this.falsePositives.sum();
+		final long negatives = queries - hits;
+		System.err.println(String.format("Filter (%d KB): %d lookups, %.3f%% passed, %d false positives (%.3f%% of the lookups not in the index)",
+				this.getSize() >> 10, queries, 100.0 * passed / queries,
+				passed - hits, negatives == 0 ? 0.0 : 100.0 * (passed - hits) / negatives));
+	}
+
+	/**
+	 * The low bits of the rolling hash are badly distributed, so the bit positions are taken from a mixed value.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int blockBits(final long size) {
+		int bits = 0;
+		while((64L << (bits + 1)) <= size && bits < RollingHashFilter.MAX_BLOCK_BITS) {
+			bits++;
+		}
+		return bits;
+	}
+
+	private int block(final long rollingHash) {
+		return this.blockBits == 0 ? 0 : (int)(rollingHash >>> (64 - this.blockBits)) * RollingHashFilter.WORDS_PER_BLOCK;
+	}
+}
@@ -0,0 +1,66 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file and leaves holes instead of zeros, for restoring disk images.
+ *
+ * The restore writes one chunk at a time, a write of only zeros of at least {@link #MIN_HOLE} bytes is skipped
+ * over instead of written.
+ */
+final class SparseFileOutputStream extends OutputStream {
+	/** the block size of most file systems, a smaller hole frees nothing */
+	private static final int MIN_HOLE = 1 << 12;
+
+	private final FileChannel channel;
+	/** the zeros which are skipped at the next write */
+	private long hole;
+
+	SparseFileOutputStream(final Path file) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		this.write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if(len == 0)
+			return;
+		if(len >= SparseFileOutputStream.MIN_HOLE && b[off] == 0 && FillChunks.runLength(b, off, len) == len) {
+			this.hole += len;
+			return;
+		}
+
+		this.skipHole();
+		final ByteBuffer src = ByteBuffer.wrap(b, off, len);
+		while(src.hasRemaining()) {
+			this.channel.write(src);
+		}
+	}
+
+	private void skipHole() throws IOException {
+		if(this.hole > 0) {
+			this.channel.position(this.channel.position() + this.hole);
+			this.hole = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// a file which ends in a hole gets its size by the last byte
+		if(this.hole > 0) {
+			this.hole--;
+			this.skipHole();
+			this.channel.write(ByteBuffer.wrap(new byte[1]));
+		}
+		this.channel.close();
+	}
+}
@@ -1,27 +1,55 @@
 package de.mknjc.apps.jbackup;
 
 import java.util.Arrays;
+import java.util.function.LongConsumer;
 
+/**
+ * Index cache with one bucket per rolling hash, a bucket is a ChunkID or an array of them.
+ *
+ * The table grows by linear hashing: whenever there are more chunks than buckets the next bucket gets split in two,
+ * so every insert moves at most one bucket and there is no rehash of the whole table. The buckets are kept in
+ * segments which are allocated one at a time, so the table isn't limited by the maximum array length.
+ */
 public class StackedArrayIndexCache implements IndexCache {
-	private Object[] chunks;
-	private int chunkCount;
-	private int mask;
+	private static final int SEGMENT_BITS = 20;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+	private Object[][] segments;
+	private long chunkCount;
+
+	/** the buckets below splitIndex are already split and use levelBits + 1 bits of the rolling hash */
+	private int levelBits;
+	private long splitIndex;
 
 	public StackedArrayIndexCache(ChunkID[] ids) {
+		this(ids, 1);
+	}
+
+	/**
+	 * Fills the table from several threads, each one fills the buckets of its own partitions of the table.
+	 */
+	public StackedArrayIndexCache(final ChunkID[] ids, final int threads) {
 		this.chunkCount = ids.length;
 		int i;
-		for(i = 26; i < 31; i++) {
-			if((1 << i) > this.chunkCount) {
+		for(i = 26; i < 62; i++) {
+			if((1L << i) > this.chunkCount) {
 				break;
 			}
 		}
 
-		this.chunks = new Object[1<<i];
-		mask = (this.chunks.length - 1);
-
-		for (final ChunkID chunkID : ids) {
-			insertChunk(chunkID, this.chunks);
+		this.levelBits = i;
+		this.segments = new Object[(int)(1L << (i - SEGMENT_BITS))][];
+		for (int s = 0; s < this.segments.length; s++) {
+			this.segments[s] = new Object[1 << SEGMENT_BITS];
 		}
+
+		final IndexPartitions partitions = new IndexPartitions(ids, this.levelBits, SEGMENT_BITS, threads);
+		final ChunkID[] chunks = partitions.getChunks();
+		partitions.forEach(partition -> {
+			for (int c = partitions.getStart(partition); c < partitions.getEnd(partition); c++) {
+				insertChunk(chunks[c]);
+			}
+		});
 		//printHistogram();
 	}
 
@@ -30,7 +58,7 @@ public class StackedArrayIndexCache implements IndexCache {
 	 */
 	@Override
 	public boolean hasChunk(long rollingHash) {
-		final Object bucket = this.chunks[(int)rollingHash & mask];
+		final Object bucket = getBucket(bucketIndex(rollingHash));
 		if(bucket == null)
 			return false;
 		if(bucket instanceof ChunkID) {
@@ -49,7 +77,7 @@ public class StackedArrayIndexCache implements IndexCache {
 	 */
 	@Override
 	public ChunkID hasChunkWithHash(long rollingHash, long shaHash0, long shaHash1) {
-		final Object bucket = this.chunks[(int)rollingHash & mask];
+		final Object bucket = getBucket(bucketIndex(rollingHash));
 		if(bucket == null)
 			return null;
 		if(bucket instanceof ChunkID)
@@ -67,38 +95,84 @@ public class StackedArrayIndexCache implements IndexCache {
 	 */
 	@Override
 	public void addChunk(ChunkID id) {
-		insertChunk(id, this.chunks);
+		insertChunk(id);
 		this.chunkCount++;
 
-		if(this.chunkCount > this.chunks.length && this.chunks.length != 1<<30) {
-			//throw new RuntimeException();
-			System.err.println("Chunk resize " + this.chunkCount);
-
-			Object[] newChunks = new Object[this.chunks.length << 1];
+		if(this.chunkCount > (1L << this.levelBits) + this.splitIndex)
+			splitBucket();
+	}
+	@Override
+	public long count() {
+		return chunkCount;
+	}
 
-			for (Object c : chunks) {
+	@Override
+	public void forEachRollingHash(LongConsumer consumer) {
+		for (Object[] segment : segments) {
+			if(segment == null)
+				continue;
+			for (Object c : segment) {
 				if(c == null)
 					continue;
 				if(c instanceof ChunkID) {
-					insertChunk((ChunkID)c, newChunks);
+					consumer.accept(((ChunkID)c).getRollingHash());
 				} else {
-					ChunkID[] bucket = ((ChunkID[])c);
-					for (ChunkID chunkID : bucket) {
-						insertChunk(chunkID, newChunks);
+					for (ChunkID chunkID : ((ChunkID[])c)) {
+						consumer.accept(chunkID.getRollingHash());
 					}
 				}
 			}
-			this.chunks = newChunks;
-			this.mask = (chunks.length - 1);
 		}
 	}
-	@Override
-	public long count() {
-		return chunkCount;
+
+	private long bucketIndex(long rollingHash) {
+		long idx = rollingHash & ((1L << levelBits) - 1);
+		if(idx < splitIndex)
+			idx = rollingHash & ((1L << (levelBits + 1)) - 1);
+		return idx;
+	}
+
+	private Object getBucket(long idx) {
+		return segments[(int)(idx >>> SEGMENT_BITS)][(int)idx & SEGMENT_MASK];
+	}
+
+	private void setBucket(long idx, Object bucket) {
+		segments[(int)(idx >>> SEGMENT_BITS)][(int)idx & SEGMENT_MASK] = bucket;
+	}
+
+	/**
+	 * Splits the bucket at splitIndex into itself and its partner one level up.
+	 */
+	private void splitBucket() {
+		final long partner = splitIndex + (1L << levelBits);
+		final int segment = (int)(partner >>> SEGMENT_BITS);
+		if(segment == segments.length)
+			segments = Arrays.copyOf(segments, segments.length * 2);
+		if(segments[segment] == null)
+			segments[segment] = new Object[1 << SEGMENT_BITS];
+
+		final Object bucket = getBucket(splitIndex);
+		setBucket(splitIndex, null);
+
+		splitIndex++;
+		if(splitIndex == 1L << levelBits) {
+			levelBits++;
+			splitIndex = 0;
+			System.err.println("Chunk resize " + this.chunkCount);
+		}
+
+		if(bucket instanceof ChunkID) {
+			insertChunk((ChunkID)bucket);
+		} else if(bucket != null) {
+			for (ChunkID chunkID : ((ChunkID[])bucket)) {
+				insertChunk(chunkID);
+			}
+		}
 	}
 
-	private static void insertChunk(ChunkID id, Object[] chunks) {
-		Object bucket = chunks[(int)id.getRollingHash() & (chunks.length - 1)];
+	private void insertChunk(ChunkID id) {
+		final long idx = bucketIndex(id.getRollingHash());
+		Object bucket = getBucket(idx);
 		if(bucket == null)
 			bucket = id;
 		else if(bucket instanceof ChunkID) {
@@ -111,6 +185,6 @@ public class StackedArrayIndexCache implements IndexCache {
 			((ChunkID[])bucket)[((ChunkID[])bucket).length - 1] = id;
 		}
 
-		chunks[(int)id.getRollingHash() & (chunks.length - 1)] = bucket;
+		setBucket(idx, bucket);
 	}
 }
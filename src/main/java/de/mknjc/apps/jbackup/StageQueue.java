@@ -0,0 +1,72 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded queue between two pipeline stages which keeps statistics about its depth.
+ *
+ * The queue has a single producer and a single consumer. A queue which is often full means the consuming stage
+ * is the bottleneck, one which is often empty means the producing stage is.
+ */
+final class StageQueue<T> {
+	private final String name;
+	private final int capacity;
+	private final ArrayBlockingQueue<T> queue;
+
+	// written by the producer
+	private long puts;
+	private long depthSum;
+	private int maxDepth;
+	private long full;
+	// written by the consumer
+	private long empty;
+
+	StageQueue(final String name, final int capacity) {
+		this.name = name;
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	void put(final T element) {
+		final int depth = this.queue.size();
+		if(depth == this.capacity)
+			this.full++;
+		this.puts++;
+		this.depthSum += depth;
+		this.maxDepth = Math.max(this.maxDepth, Math.min(depth + 1, this.capacity));
+
+		while(true) {
+			try {
+				this.queue.put(element);
+				return;
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	T take() {
+		if(this.queue.isEmpty())
+			this.empty++;
+
+		while(true) {
+			try {
+				return this.queue.take();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * @return the next element or null if the queue is empty
+	 */
+	T poll() {
+		return this.queue.poll();
+	}
+
+	void printStats() {
+		System.err.println(String.format("Queue %s: average depth %.1f, max %d of %d, full %d times, empty %d times",
+				this.name, this.puts == 0 ? 0.0 : (double)this.depthSum / this.puts, this.maxDepth, this.capacity, this.full, this.empty));
+	}
+}
@@ -1,24 +1,68 @@
 package de.mknjc.apps.jbackup;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import com.google.protobuf.ByteString;
 
 public interface Store {
 	public boolean hasChunk(long rollingHash);
+
+	/**
+	 * Adds the {@link #hasChunk(long)} calls of one backup to the statistics of the store.
+	 *
+	 * @param matches the calls which returned true
+	 */
+	public default void countLookups(final long lookups, final long matches) {
+	}
 	public ChunkID getChunk(long rollingHash, int size, byte[] chunkID);
 
-	public ChunkID saveChunk(byte[] chunk, int offset, int length, byte[] chunkID, long rollingHash);
+	public default ChunkID saveChunk(final byte[] chunk, final int offset, final int length, final byte[] chunkID, final long rollingHash) {
+		return this.saveChunk(ByteBuffer.wrap(chunk), offset, length, chunkID, rollingHash);
+	}
+
+	/**
+	 * Saves chunk[offset, offset + length), the buffer position is not used. The data is copied straight from the
+	 * buffer into the bundle, so it may be a mapping of the input.
+	 */
+	public ChunkID saveChunk(ByteBuffer chunk, int offset, int length, byte[] chunkID, long rollingHash);
 
 	public void finish() throws IOException;
 
 
 	public int getMaxChunkSize();
+
+	/**
+	 * @return a chunker for new backups or null to use the rolling match of zbackup
+	 */
+	public Chunker newChunker();
 	public int getMaxChunksInCache();
 
-	Future<Bundle> loadBundle(byte[] id);
+	/**
+	 * @return whether a chunk repeated in a row may be written as one instruction, zbackup can't restore that
+	 */
+	public boolean isChunkRepeatEnabled();
+
+	default Future<Bundle> loadBundle(final BundleId bundle) {
+		return this.loadBundle(bundle, null);
+	}
+
+	/**
+	 * Loads a bundle, of a bundle compressed in blocks only the blocks holding the given chunks are decompressed.
+	 * The other chunks are decompressed when they are written, null decompresses all.
+	 */
+	Future<Bundle> loadBundle(BundleId bundle, Collection<ChunkID> chunks);
 
 	ChunkID lookupID(final ByteString bs);
 
+	/**
+	 * Resolves many chunk ids at once, in an order which suits the index.
+	 *
+	 * @return the chunks in the order of the ids, null for unknown ids. Equal ids may share one ChunkID.
+	 */
+	ChunkID[] lookupIDs(List<ByteString> ids);
+
 }
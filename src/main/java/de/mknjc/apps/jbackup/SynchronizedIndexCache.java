@@ -0,0 +1,78 @@
+package de.mknjc.apps.jbackup;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Guards an index cache which isn't safe for concurrent use.
+ *
+ * The lookups of the wrapped caches don't change them, so they share the read lock and only the writes are exclusive.
+ */
+final class SynchronizedIndexCache implements IndexCache {
+	private final IndexCache cache;
+	private final StampedLock lock = new StampedLock();
+
+	SynchronizedIndexCache(final IndexCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public boolean hasChunk(final long rollingHash) {
+		final long stamp = this.lock.readLock();
+		try {
+			return this.cache.hasChunk(rollingHash);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public ChunkID hasChunkWithHash(final long rollingHash, final long shaHash0, final long shaHash1) {
+		final long stamp = this.lock.readLock();
+		try {
+			return this.cache.hasChunkWithHash(rollingHash, shaHash0, shaHash1);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void addChunk(final ChunkID id) {
+		final long stamp = this.lock.writeLock();
+		try {
+			this.cache.addChunk(id);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public ChunkID addChunkIfAbsent(final ChunkID id) {
+		final long stamp = this.lock.writeLock();
+		try {
+			return this.cache.addChunkIfAbsent(id);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public long count() {
+		final long stamp = this.lock.readLock();
+		try {
+			return this.cache.count();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void forEachRollingHash(final LongConsumer consumer) {
+		final long stamp = this.lock.readLock();
+		try {
+			this.cache.forEachRollingHash(consumer);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package de.mknjc.apps.jbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import org.tukaani.xz.LZMA2InputStream;
+import org.tukaani.xz.SingleXZInputStream;
+import org.tukaani.xz.check.Check;
+
+/**
+ * xz streams with several blocks which are compressed and decompressed at once.
+ *
+ * xz-java writes one block per stream, so the blocks are compressed as separate streams and joined into one stream
+ * with a block per part, which any xz decoder reads, like zbackup. Unlike xz-java the joined block headers hold
+ * the compressed and the uncompressed size, so the blocks are found without decompressing them. Streams without
+ * the sizes, like those of zbackup, are decompressed as a whole.
+ */
+final class XzBlocks {
+	private static final byte[] HEADER_MAGIC = { (byte)0xfd, '7', 'z', 'X', 'Z', 0 };
+	private static final byte[] FOOTER_MAGIC = { 'Y', 'Z' };
+	private static final int HEADER_SIZE = 12;
+	private static final int FOOTER_SIZE = 12;
+	private static final int LZMA2_FILTER = 0x21;
+	private static final int SIZES_PRESENT = 0xc0;
+
+	private XzBlocks() {
+	}
+
+	/**
+	 * Joins streams of one block each with the same check into one stream.
+	 */
+	static void join(final List<byte[]> streams, final OutputStream os) throws IOException {
+		final byte[] first = streams.get(0);
+		final int checkSize = XzBlocks.checkSize(first[7] & 0x0f);
+		os.write(first, 0, XzBlocks.HEADER_SIZE);
+
+		final ByteArrayOutputStream index = new ByteArrayOutputStream();
+		index.write(0);
+		XzBlocks.writeVarint(index, streams.size());
+
+		for (final byte[] stream : streams) {
+			final int indexSize = (XzBlocks.littleEndianInt(stream, stream.length - 8) + 1) * 4;
+			final int indexStart = stream.length - XzBlocks.FOOTER_SIZE - indexSize;
+			final ByteArrayInputStream records = new ByteArrayInputStream(stream, indexStart, indexSize);
+			if(records.read() != 0 || XzBlocks.readVarint(records) != 1)
+				throw new IOException("Expected a xz stream with one block");
+			final long unpadded = XzBlocks.readVarint(records);
+			final long uncompressed = XzBlocks.readVarint(records);
+
+			final int headerSize = ((stream[XzBlocks.HEADER_SIZE] & 0xff) + 1) * 4;
+			final long compressed = unpadded - headerSize - checkSize;
+			final byte[] header = XzBlocks.blockHeader(stream, XzBlocks.HEADER_SIZE, headerSize, compressed, uncompressed);
+
+			os.write(header);
+			// the compressed data, its padding and the check
+			os.write(stream, XzBlocks.HEADER_SIZE + headerSize, indexStart - XzBlocks.HEADER_SIZE - headerSize);
+
+			XzBlocks.writeVarint(index, header.length + compressed + checkSize);
+			XzBlocks.writeVarint(index, uncompressed);
+		}
+		while(index.size() % 4 != 0) {
+			index.write(0);
+		}
+		final byte[] indexBytes = index.toByteArray();
+		os.write(indexBytes);
+		XzBlocks.writeLittleEndianInt(os, XzBlocks.crc32(indexBytes, 0, indexBytes.length));
+
+		final byte[] footer = new byte[XzBlocks.FOOTER_SIZE];
+		final int backwardSize = (indexBytes.length + 4) / 4 - 1;
+		footer[4] = (byte)backwardSize;
+		footer[5] = (byte)(backwardSize >>> 8);
+		footer[6] = (byte)(backwardSize >>> 16);
+		footer[7] = (byte)(backwardSize >>> 24);
+		footer[8] = first[6];
+		footer[9] = first[7];
+		footer[10] = XzBlocks.FOOTER_MAGIC[0];
+		footer[11] = XzBlocks.FOOTER_MAGIC[1];
+		final int crc = XzBlocks.crc32(footer, 4, 6);
+		footer[0] = (byte)crc;
+		footer[1] = (byte)(crc >>> 8);
+		footer[2] = (byte)(crc >>> 16);
+		footer[3] = (byte)(crc >>> 24);
+		os.write(footer);
+	}
+
+	/**
+	 * @return the block header at start with the sizes
+	 */
+	private static byte[] blockHeader(final byte[] stream, final int start, final int size, final long compressed, final long uncompressed) throws IOException {
+		final int flags = stream[start + 1] & 0xff;
+		final ByteArrayInputStream in = new ByteArrayInputStream(stream, start + 2, size - 6);
+		if((flags & 0x40) != 0)
+			XzBlocks.readVarint(in);
+		if((flags & 0x80) != 0)
+			XzBlocks.readVarint(in);
+		final int filtersStart = start + size - 4 - in.available();
+		for (int i = 0; i <= (flags & 3); i++) {
+			XzBlocks.readVarint(in);
+			in.skip(XzBlocks.readVarint(in));
+		}
+		final int filtersEnd = start + size - 4 - in.available();
+
+		final ByteArrayOutputStream header = new ByteArrayOutputStream(size + 16);
+		header.write(0);
+		header.write(flags | XzBlocks.SIZES_PRESENT);
+		XzBlocks.writeVarint(header, compressed);
+		XzBlocks.writeVarint(header, uncompressed);
+		header.write(stream, filtersStart, filtersEnd - filtersStart);
+		while(header.size() % 4 != 0) {
+			header.write(0);
+		}
+		final byte[] bytes = Arrays.copyOf(header.toByteArray(), header.size() + 4);
+		bytes[0] = (byte)(bytes.length / 4 - 1);
+		final int crc = XzBlocks.crc32(bytes, 0, bytes.length - 4);
+		bytes[bytes.length - 4] = (byte)crc;
+		bytes[bytes.length - 3] = (byte)(crc >>> 8);
+		bytes[bytes.length - 2] = (byte)(crc >>> 16);
+		bytes[bytes.length - 1] = (byte)(crc >>> 24);
+		return bytes;
+	}
+
+	/**
+	 * Decompresses one stream of exactly length bytes, the blocks with sizes at once on the executor.
+	 */
+	static void decompress(final InputStream is, final byte[] dst, final int offset, final int length, final Executor executor) throws IOException {
+		final Reader in = new Reader(is);
+		final List<Callable<Void>> tasks = XzBlocks.readBlocks(in, dst, offset, length);
+		if(tasks == null) {
+			// without the sizes the bytes read so far are read again by the decoder
+			final InputStream cis = new SingleXZInputStream(new SequenceInputStream(new ByteArrayInputStream(in.buffer, 0, in.length), is));
+			Codec.readFully(cis, dst, offset, length);
+			if(cis.read() != -1)
+				throw new IOException("Unknown data at the end of lzma stream");
+			return;
+		}
+		Codec.runAll(tasks, executor);
+	}
+
+	/**
+	 * Reads the whole stream and creates a task per block which decompresses it to its place in dst.
+	 *
+	 * @return null if a block has no sizes or another filter than LZMA2
+	 */
+	private static List<Callable<Void>> readBlocks(final Reader in, final byte[] dst, final int offset, final int length) throws IOException {
+		final int header = in.read(XzBlocks.HEADER_SIZE);
+		if(!Arrays.equals(Arrays.copyOfRange(in.buffer, header, header + XzBlocks.HEADER_MAGIC.length), XzBlocks.HEADER_MAGIC)
+				|| XzBlocks.crc32(in.buffer, header + 6, 2) != XzBlocks.littleEndianInt(in.buffer, header + 8))
+			return null;
+		final int checkType = in.buffer[header + 7] & 0x0f;
+		final int checkSize = XzBlocks.checkSize(checkType);
+
+		final List<Callable<Void>> tasks = new ArrayList<>();
+		final List<long[]> records = new ArrayList<>();
+		int out = offset;
+		int start;
+		while(true) {
+			start = in.read(1);
+			if(in.buffer[start] == 0)
+				break;
+
+			final int headerSize = ((in.buffer[start] & 0xff) + 1) * 4;
+			in.read(headerSize - 1);
+			if(XzBlocks.crc32(in.buffer, start, headerSize - 4) != XzBlocks.littleEndianInt(in.buffer, start + headerSize - 4))
+				throw new IOException("xz block header is corrupt");
+
+			final int flags = in.buffer[start + 1] & 0xff;
+			if((flags & XzBlocks.SIZES_PRESENT) != XzBlocks.SIZES_PRESENT || (flags & 3) != 0)
+				return null;
+			final ByteArrayInputStream h = new ByteArrayInputStream(in.buffer, start + 2, headerSize - 6);
+			final long compressed = XzBlocks.readVarint(h);
+			final long uncompressed = XzBlocks.readVarint(h);
+			if(XzBlocks.readVarint(h) != XzBlocks.LZMA2_FILTER || XzBlocks.readVarint(h) != 1)
+				return null;
+			final int dictSize = XzBlocks.dictSize(h.read());
+
+			if(uncompressed > offset + length - out || compressed > uncompressed + uncompressed / 8 + (1 << 16))
+				throw new IOException("xz block is too large");
+
+			final int padding = (int)-compressed & 3;
+			final int data = in.read((int)compressed + padding + checkSize);
+			final int blockOffset = out;
+			tasks.add(() -> {
+				XzBlocks.decodeBlock(in.buffer, data, (int)compressed, dictSize, dst, blockOffset, (int)uncompressed, checkType, data + (int)compressed + padding);
+				return null;
+			});
+			records.add(new long[] { headerSize + compressed + checkSize, uncompressed });
+			out += uncompressed;
+		}
+
+		// the index after the blocks has to match them
+		if(in.readVarint() != records.size())
+			throw new IOException("xz index doesn't match the blocks");
+		for (final long[] record : records) {
+			if(in.readVarint() != record[0] || in.readVarint() != record[1])
+				throw new IOException("xz index doesn't match the blocks");
+		}
+		while((in.length - start) % 4 != 0) {
+			if(in.readByte() != 0)
+				throw new IOException("xz index is corrupt");
+		}
+		final int crc = in.read(4);
+		if(XzBlocks.crc32(in.buffer, start, crc - start) != XzBlocks.littleEndianInt(in.buffer, crc))
+			throw new IOException("xz index is corrupt");
+
+		final int footer = in.read(XzBlocks.FOOTER_SIZE);
+		if(in.buffer[footer + 10] != XzBlocks.FOOTER_MAGIC[0] || in.buffer[footer + 11] != XzBlocks.FOOTER_MAGIC[1]
+				|| XzBlocks.littleEndianInt(in.buffer, footer + 4) != (crc + 4 - start) / 4 - 1)
+			throw new IOException("xz stream footer is corrupt");
+
+		if(out != offset + length)
+			throw new IOException("xz stream has the wrong size");
+		return tasks;
+	}
+
+	private static void decodeBlock(final byte[] buffer, final int start, final int compressed, final int dictSize, final byte[] dst, final int offset, final int length, final int checkType, final int checkStart) throws IOException {
+		final InputStream lzma2 = new LZMA2InputStream(new ByteArrayInputStream(buffer, start, compressed), dictSize);
+		Codec.readFully(lzma2, dst, offset, length);
+		if(lzma2.read() != -1)
+			throw new IOException("Unknown data at the end of xz block");
+
+		if(checkType != 0) {
+			final Check check = Check.getInstance(checkType);
+			check.update(dst, offset, length);
+			final byte[] expected = check.finish();
+			for (int i = 0; i < expected.length; i++) {
+				if(buffer[checkStart + i] != expected[i])
+					throw new IOException("xz block check failed");
+			}
+		}
+	}
+
+	private static int dictSize(final int props) throws IOException {
+		if(props < 0 || props > 40)
+			throw new IOException("Invalid LZMA2 dictionary size");
+		if(props == 40)
+			return LZMA2InputStream.DICT_SIZE_MAX;
+		return (2 | (props & 1)) << (props / 2 + 11);
+	}
+
+	private static int checkSize(final int checkType) {
+		return checkType == 0 ? 0 : 4 << ((checkType - 1) / 3);
+	}
+
+	private static int crc32(final byte[] data, final int offset, final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int)crc.getValue();
+	}
+
+	private static int littleEndianInt(final byte[] data, final int offset) {
+		return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+	}
+
+	private static void writeLittleEndianInt(final OutputStream os, final int value) throws IOException {
+		os.write(value);
+		os.write(value >>> 8);
+		os.write(value >>> 16);
+		os.write(value >>> 24);
+	}
+
+	private static long readVarint(final InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 63; shift += 7) {
+			final int b = in.read();
+			if(b == -1)
+				throw new IOException("Short read from data");
+			value |= (long)(b & 0x7f) << shift;
+			if(b < 0x80)
+				return value;
+		}
+		throw new IOException("Invalid xz varint");
+	}
+
+	private static void writeVarint(final OutputStream os, long value) throws IOException {
+		while(value >= 0x80) {
+			os.write((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		os.write((int)value);
+	}
+
+	/**
+	 * Reads from a stream and keeps everything in one buffer.
+	 */
+	private static final class Reader {
+		private final InputStream is;
+		private byte[] buffer = new byte[1 << 16];
+		private int length;
+
+		Reader(final InputStream is) {
+			this.is = is;
+		}
+
+		/**
+		 * @return the position of the bytes in the buffer
+		 */
+		int read(final int count) throws IOException {
+			if(this.length + count > this.buffer.length)
+				this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + count));
+			Codec.readFully(this.is, this.buffer, this.length, count);
+			this.length += count;
+			return this.length - count;
+		}
+
+		int readByte() throws IOException {
+			return this.buffer[this.read(1)] & 0xff;
+		}
+
+		long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 63; shift += 7) {
+				final int b = this.readByte();
+				value |= (long)(b & 0x7f) << shift;
+				if(b < 0x80)
+					return value;
+			}
+			throw new IOException("Invalid xz varint");
+		}
+	}
+}
@@ -10,33 +10,53 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import com.google.protobuf.ByteString;
 import de.mknjc.apps.zbackup.proto.Zbackup.BackupInfo;
 import de.mknjc.apps.zbackup.proto.Zbackup.BundleInfo;
+import de.mknjc.apps.zbackup.proto.Zbackup.BundleInfo.ChunkRecord;
 import de.mknjc.apps.zbackup.proto.Zbackup.ExtendedStorageInfo;
 import de.mknjc.apps.zbackup.proto.Zbackup.FileHeader;
 
 public class ZbackupStore implements Store {
+	/** chunk ids resolved by one task of {@link #lookupIDs(List)} */
+	private static final int LOOKUP_BATCH = 1 << 16;
 
 	private Bundle currentBundle;
+	/** the bundle for incompressible chunks if they are probed */
+	private Bundle currentRawBundle;
+	private long incompressibleChunks;
+	private long incompressibleBytes;
 
 	private final HashMap<Path, BundleInfo> newBundles = new HashMap<>();
 
 	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(128), new ThreadPoolExecutor.CallerRunsPolicy());
 	private final Semaphore bundleWriterSem = new Semaphore(Runtime.getRuntime().availableProcessors());
+	/** picks the level of the bundles if the compression is adaptive */
+	private CompressionController controller;
 
 	private final Path store;
 
@@ -45,6 +65,17 @@ public class ZbackupStore implements Store {
 	private final Config config = new Config();
 
 	private final IndexCache indexCache;
+	/** the index as seen by the backup, the levels of the instructions probe and add chunks from several threads */
+	private final IndexCache backupIndex;
+	/** numbers the bundles of the loaded index */
+	private final BundleRegistry bundleRegistry = new BundleRegistry();
+
+	private RollingHashFilter filter;
+
+	/** the snapshot of the bytebuffer index or null, it is written by {@link #finish()} after a backup */
+	private Path snapshotPath;
+	/** the index files contained in the cache with their sizes */
+	private Map<String, Long> snapshotFiles;
 
 	public ZbackupStore(final Path store, final List<String> storeOptions, final List<String> runtimeOptions) throws IOException {
 		this.store = store;
@@ -81,6 +112,18 @@ public class ZbackupStore implements Store {
 			case "bundle.erasure_level":
 				this.config.erasureLevel = Integer.parseInt(val);
 				break;
+			case "backup.chunk_repeat":
+				this.config.chunkRepeat = val == null || Boolean.parseBoolean(val);
+				break;
+			case "bundle.block_size":
+				this.config.blockSize = parseSize(val);
+				break;
+			case "chunk.min_size":
+				this.config.chunkMinSize = parseSize(val);
+				break;
+			case "chunk.avg_size":
+				this.config.chunkAvgSize = parseSize(val);
+				break;
 
 			default:
 				System.err.println("Unknown config " + option);
@@ -96,30 +139,221 @@ public class ZbackupStore implements Store {
 			case "cache-size":
 				this.config.chunksInCache = Integer.parseInt(val);
 				break;
+			case "index-cache":
+				this.config.indexCache = val;
+				break;
+			case "chunker":
+				this.config.chunker = val;
+				break;
+			case "index-threads":
+				this.config.indexThreads = Integer.parseInt(val);
+				break;
+			case "filter-size":
+				this.config.filterSize = val == null ? -1 : parseSize(val);
+				break;
+			case "index-snapshot":
+				this.config.indexSnapshot = val == null || Boolean.parseBoolean(val);
+				break;
+			case "incompressible-compression":
+				if(val != null && Codec.forWriting(val) == null)
+					throw new IllegalArgumentException("Can't write bundles with " + val);
+				this.config.incompressibleCompression = val;
+				break;
+			case "compression-threads":
+				this.config.compressionThreads = Integer.parseInt(val);
+				break;
+			case "adaptive-compression":
+				if(val != null && !val.equals("on") && !val.equals("off") && Codec.forWriting(val) == null)
+					throw new IllegalArgumentException("Can't write bundles with " + val);
+				this.config.adaptiveCompression = val == null ? "on" : val;
+				break;
+			case "compression-target":
+				this.config.compressionTarget = parseSize(val);
+				break;
 
 			default:
 				break;
 			}
 		}
 
+		// a store zbackup set up for lzo is still read, the new bundles get lzma
+		if(Codec.forWriting(this.config.bundleCompressionMethod) == null) {
+			if(Codec.forName(this.config.bundleCompressionMethod) == null)
+				throw new IllegalArgumentException("Unknown compressor " + this.config.bundleCompressionMethod);
+			System.err.println("Can't write " + this.config.bundleCompressionMethod + " bundles yet, new bundles are compressed with lzma");
+			this.config.bundleCompressionMethod = "lzma";
+		}
+
+		if(!this.config.adaptiveCompression.equals("off")) {
+			if(this.config.bundleCompressionMethod.equals("lzma")) {
+				final String fallback = this.config.adaptiveCompression.equals("on") ? null : this.config.adaptiveCompression;
+				this.controller = new CompressionController(this.config.compressionLevel, fallback, this.config.compressionTarget, Runtime.getRuntime().availableProcessors());
+			} else {
+				System.err.println("Adaptive compression needs lzma bundles, using " + this.config.bundleCompressionMethod);
+			}
+		}
+
 		Files.createDirectories(store.resolve("index"));
 
 		long start = System.nanoTime();
 
-		//indexCache = new StackedArrayIndexCache(new ChunkID[0]);
-		final ChunkID[] loadedChunks;
-		try (Stream<Path> files = Files.list(store.resolve("index"))) {
-			loadedChunks =
-					files
-					.flatMap(t -> ExceptionHelper.runtime(IndexFile::getChunksInIndex, t))
-					.toArray(i -> new ChunkID[i]);
-			//.forEach(indexCache::addChunk);
-		}
+		// the filter stored in the index snapshot and the rolling hashes of the index files loaded on top of it
+		RollingHashFilter storedFilter = null;
+		final LongStream.Builder loadedHashes = LongStream.builder();
 
-		indexCache = new StackedArrayIndexCache(loadedChunks);
-		//indexCache = new ByteBufferIndexCache(loadedChunks);
+		switch (this.config.indexCache) {
+		case "stacked":
+		case "linear":
+			final List<Path> indexPaths;
+			try (Stream<Path> files = Files.list(store.resolve("index"))) {
+				indexPaths = files.collect(Collectors.toList());
+			}
+
+			final ChunkID[] loadedChunks;
+			final ForkJoinPool loaderPool = new ForkJoinPool(this.config.indexThreads);
+			try {
+				loadedChunks = loaderPool.submit(() ->
+				indexPaths
+				.parallelStream()
+				.flatMap(t -> ExceptionHelper.runtime(path -> IndexFile.getChunksInIndex(path, this.bundleRegistry), t))
+				.toArray(i -> new ChunkID[i])).get();
+			} catch (final InterruptedException | ExecutionException e) {
+				throw new IOException("Can't load index", e);
+			} finally {
+				loaderPool.shutdown();
+			}
+
+			if(this.config.indexCache.equals("stacked"))
+				this.indexCache = new StackedArrayIndexCache(loadedChunks, this.config.indexThreads);
+			else
+				this.indexCache = new LinearArrayIndexCache(loadedChunks, this.config.indexThreads);
+			break;
+		case "bytebuffer":
+			final Map<String, Long> indexFiles = new HashMap<>();
+			try (Stream<Path> files = Files.list(store.resolve("index"))) {
+				files.forEach(t -> indexFiles.put(t.getFileName().toString(), ExceptionHelper.runtime(Files::size, t)));
+			}
 
+			final Path snapshotPath = IndexSnapshot.of(store);
+			IndexSnapshot snapshot = null;
+			if(this.config.indexSnapshot) {
+				try {
+					snapshot = IndexSnapshot.load(snapshotPath, indexFiles, this.bundleRegistry, this.config.filterSize != 0);
+				} catch (final IOException e) {
+					System.err.println("Can't load index snapshot: " + e);
+				}
+			}
+
+			final Map<String, Long> missingFiles = new HashMap<>(indexFiles);
+			final ByteBufferIndexCache cache;
+			if(snapshot != null) {
+				missingFiles.keySet().removeAll(snapshot.getCoveredFiles().keySet());
+				cache = snapshot.getCache();
+			} else {
+				// a chunk record takes about 32 bytes in the index file
+				cache = new ByteBufferIndexCache(indexFiles.values().stream().mapToLong(Long::longValue).sum() / 32, this.bundleRegistry);
+			}
+			this.indexCache = cache;
+
+			final List<Path> filesToLoad = missingFiles.keySet().stream().map(store.resolve("index")::resolve).collect(Collectors.toList());
+			storedFilter = snapshot != null ? snapshot.getFilter() : null;
+			new IndexLoader(this.config.indexThreads).load(filesToLoad, cache, storedFilter != null ? loadedHashes::add : null);
+
+			// a restore doesn't change the index, so the snapshot is only written when a backup finishes
+			if(this.config.indexSnapshot) {
+				this.snapshotPath = snapshotPath;
+				this.snapshotFiles = indexFiles;
+			}
+			break;
+		case "concurrent":
+			final List<Path> concurrentIndexPaths;
+			try (Stream<Path> files = Files.list(store.resolve("index"))) {
+				concurrentIndexPaths = files.collect(Collectors.toList());
+			}
+			// a chunk record takes about 32 bytes in the index file
+			final ConcurrentIndexCache concurrentCache = new ConcurrentIndexCache(concurrentIndexPaths.stream().mapToLong(t -> ExceptionHelper.runtime(Files::size, t)).sum() / 32, this.bundleRegistry);
+			this.indexCache = concurrentCache;
+
+			final ForkJoinPool concurrentLoaderPool = new ForkJoinPool(this.config.indexThreads);
+			try {
+				concurrentLoaderPool.submit(() ->
+				concurrentIndexPaths
+				.parallelStream()
+				.forEach(t -> ExceptionHelper.runtime(path -> IndexFile.getChunksInIndex(path, this.bundleRegistry), t).forEach(concurrentCache::addChunk))).get();
+			} catch (final InterruptedException | ExecutionException e) {
+				throw new IOException("Can't load index", e);
+			} finally {
+				concurrentLoaderPool.shutdown();
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown index cache " + this.config.indexCache);
+		}
+
+		this.backupIndex = this.indexCache instanceof ConcurrentIndexCache ? this.indexCache : new SynchronizedIndexCache(this.indexCache);
 		System.err.println("Index with " + indexCache.count() + " chunkids loaded in " + Duration.ofNanos(System.nanoTime() - start));
+
+		if(this.config.filterSize != 0) {
+			start = System.nanoTime();
+			// 8 to 16 bits per chunk after the rounding down, but not larger than the cache it should stay in
+			final long wanted = Math.max(64 << 10, 2 * this.indexCache.count());
+			final long filterSize = this.config.filterSize > 0 ? this.config.filterSize : Math.min(RollingHashFilter.CACHE_SIZE, wanted);
+
+			if(storedFilter != null && storedFilter.getSize() == RollingHashFilter.sizeOf(filterSize)) {
+				this.filter = storedFilter;
+				loadedHashes.build().forEach(this.filter::add);
+				System.err.println("Filter with " + (this.filter.getSize() >> 10) + " KB loaded from the index snapshot in " + Duration.ofNanos(System.nanoTime() - start));
+			} else {
+				this.filter = new RollingHashFilter(filterSize);
+				this.buildFilter();
+				System.err.println("Filter with " + (this.filter.getSize() >> 10) + " KB built in " + Duration.ofNanos(System.nanoTime() - start));
+			}
+			if(this.filter.getSize() * 8 < 6 * this.indexCache.count())
+				System.err.println("Filter has only " + String.format("%.1f", this.filter.getSize() * 8.0 / this.indexCache.count()) + " bits per chunk, many lookups pass it");
+		}
+	}
+
+	private void buildFilter() throws IOException {
+		if(!(this.indexCache instanceof ByteBufferIndexCache)) {
+			this.indexCache.forEachRollingHash(this.filter::add);
+			return;
+		}
+
+		final ByteBufferIndexCache cache = (ByteBufferIndexCache)this.indexCache;
+		if(cache.hasZeroHashChunks())
+			this.filter.add(0);
+
+		// the table partitions map to distinct filter blocks, only chunks moved out of their partition by the probing have to wait
+		final int partitionBits = Math.min(Math.min(cache.getBits(), this.filter.getBlockBits()), 32 - Integer.numberOfLeadingZeros(this.config.indexThreads * 4 - 1));
+		final long partitionSize = 1L << (cache.getBits() - partitionBits);
+
+		final List<Callable<long[]>> tasks = new ArrayList<>();
+		for (int p = 0; p < (1 << partitionBits); p++) {
+			final long partition = p;
+			tasks.add(() -> {
+				final LongStream.Builder displaced = LongStream.builder();
+				cache.forEachRollingHash(partition * partitionSize, (partition + 1) * partitionSize, rollingHash -> {
+					if(partitionBits == 0 || rollingHash >>> (64 - partitionBits) == partition)
+						this.filter.add(rollingHash);
+					else
+						displaced.add(rollingHash);
+				});
+				return displaced.build().toArray();
+			});
+		}
+
+		final ExecutorService filterExecutor = Executors.newFixedThreadPool(Math.max(1, this.config.indexThreads));
+		try {
+			for (final Future<long[]> displaced : filterExecutor.invokeAll(tasks)) {
+				for (final long rollingHash : displaced.get()) {
+					this.filter.add(rollingHash);
+				}
+			}
+		} catch (final InterruptedException | ExecutionException e) {
+			throw new IOException("Can't build filter", e);
+		} finally {
+			filterExecutor.shutdown();
+		}
 	}
 
 	@Override
@@ -133,43 +367,115 @@ public class ZbackupStore implements Store {
 	}
 
 	@Override
-	public Future<Bundle> loadBundle(final byte[] id) {
+	public ChunkID[] lookupIDs(final List<ByteString> ids) {
+		final int count = ids.size();
+		final long[] rollingHashes = new long[count];
+		final long[] hashes0 = new long[count];
+		final long[] hashes1 = new long[count];
+
+		final byte[] id = new byte[24];
+		for (int i = 0; i < count; i++) {
+			ids.get(i).copyTo(id, 0);
+			hashes0[i] = ZbackupStore.littleEndianLong(id, 0);
+			hashes1[i] = ZbackupStore.littleEndianLong(id, 8);
+			rollingHashes[i] = ZbackupStore.littleEndianLong(id, 16);
+		}
+
+		// in rolling hash order the probes move through the table in one direction and equal ids are next to each other
+		final int[] order = RadixSort.order(rollingHashes, count);
+		final ChunkID[] chunks = new ChunkID[count];
+
+		final int batches = (count + ZbackupStore.LOOKUP_BATCH - 1) / ZbackupStore.LOOKUP_BATCH;
+		final IntConsumer lookupBatch = batch -> {
+			final int end = Math.min(count, (batch + 1) * ZbackupStore.LOOKUP_BATCH);
+			for (int k = batch * ZbackupStore.LOOKUP_BATCH; k < end; k++) {
+				final int i = order[k];
+				final int prev = k > batch * ZbackupStore.LOOKUP_BATCH ? order[k - 1] : -1;
+				if(prev != -1 && rollingHashes[prev] == rollingHashes[i] && hashes0[prev] == hashes0[i] && hashes1[prev] == hashes1[i])
+					chunks[i] = chunks[prev];
+				else
+					chunks[i] = this.indexCache.hasChunkWithHash(rollingHashes[i], hashes0[i], hashes1[i]);
+			}
+		};
+
+		if(batches <= 1 || this.config.indexThreads <= 1) {
+			IntStream.range(0, batches).forEach(lookupBatch);
+			return chunks;
+		}
+
+		final ForkJoinPool lookupPool = new ForkJoinPool(this.config.indexThreads);
+		try {
+			lookupPool.submit(() -> IntStream.range(0, batches).parallel().forEach(lookupBatch)).get();
+		} catch (final InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Can't resolve chunk ids", e);
+		} finally {
+			lookupPool.shutdown();
+		}
+		return chunks;
+	}
+
+	@Override
+	public Future<Bundle> loadBundle(final BundleId bundle, final Collection<ChunkID> chunks) {
 		return this.executor.submit(() -> {
+			final byte[] id = bundle.getId();
 			return Bundle.readBundleFromFile(
 					this.store
 					.resolve("bundles")
 					.resolve(String.format("%02x", id[0]))
-					.resolve(ZbackupStore.bundleString(id)));
+					.resolve(ZbackupStore.bundleString(id)), chunks, this.executor);
 		});
 	}
 
 
 	@Override
 	public boolean hasChunk(final long rollingHash) {
-		return indexCache.hasChunk(rollingHash);
+		if(this.filter == null)
+			return this.backupIndex.hasChunk(rollingHash);
+
+		if(!this.filter.mightContain(rollingHash))
+			return false;
+
+		if(this.backupIndex.hasChunk(rollingHash))
+			return true;
+
+		this.filter.recordFalsePositive();
+		return false;
+	}
+
+	@Override
+	public void countLookups(final long lookups, final long matches) {
+		if(this.filter != null)
+			this.filter.countLookups(lookups, matches);
 	}
 	@Override
 	public ChunkID getChunk(final long rollingHash, final int size, final byte[] shaHash) {
 		long hash0 = ChunkID.makeLongFromArray(shaHash, 0);
 		long hash1 = ChunkID.makeLongFromArray(shaHash, 8);
-		return indexCache.hasChunkWithHash(rollingHash, hash0, hash1);
+		return this.backupIndex.hasChunkWithHash(rollingHash, hash0, hash1);
 
 	}
 
 	@Override
-	public ChunkID saveChunk(final byte[] chunk, final int offset, final int length, final byte[] shahash, final long rollingHash) {
+	public ChunkID saveChunk(final ByteBuffer chunk, final int offset, final int length, final byte[] shahash, final long rollingHash) {
 		final ChunkID id = new ChunkID(rollingHash, length, shahash, null);
 
-		indexCache.addChunk(id);
+		// with a concurrent index another thread may have stored the same chunk in the meantime
+		final ChunkID existing = this.backupIndex.addChunkIfAbsent(id);
+		if(existing != null)
+			return existing;
 
-		if(this.currentBundle == null) {
-			this.currentBundle = new Bundle(this.config.bundleMaxPayload);
-		}
-		if(!this.currentBundle.addChunk(chunk, offset, length, id)) {
-			this.saveBundle();
-			this.currentBundle = new Bundle(this.config.bundleMaxPayload);
-			if(!this.currentBundle.addChunk(chunk, offset, length, id)) {
-				throw new Error("a newly created bundle has not enough size for this chunk");
+		final boolean incompressible = this.config.incompressibleCompression != null && CompressibilityProbe.isIncompressible(chunk, offset, length);
+
+		synchronized (this) {
+			if(this.filter != null)
+				this.filter.add(rollingHash);
+
+			if(incompressible) {
+				this.incompressibleChunks++;
+				this.incompressibleBytes += length;
+				this.currentRawBundle = this.addToBundle(this.currentRawBundle, this.config.incompressibleCompression, false, chunk, offset, length, id);
+			} else {
+				this.currentBundle = this.addToBundle(this.currentBundle, this.config.bundleCompressionMethod, true, chunk, offset, length, id);
 			}
 		}
 
@@ -177,9 +483,34 @@ public class ZbackupStore implements Store {
 
 	}
 
+	/**
+	 * @return the bundle which holds the chunk, a full bundle is saved with the compressor
+	 */
+	private Bundle addToBundle(Bundle bundle, final String compressor, final boolean adaptive, final ByteBuffer chunk, final int offset, final int length, final ChunkID id) {
+		if(bundle == null) {
+			bundle = new Bundle(this.config.bundleMaxPayload);
+		}
+		if(!bundle.addChunk(chunk, offset, length, id)) {
+			this.saveBundle(bundle, compressor, adaptive);
+			bundle = new Bundle(this.config.bundleMaxPayload);
+			if(!bundle.addChunk(chunk, offset, length, id)) {
+				throw new Error("a newly created bundle has not enough size for this chunk");
+			}
+		}
+		return bundle;
+	}
+
 	@Override
-	public void finish() throws IOException {
-		this.saveBundle();
+	public synchronized void finish() throws IOException {
+		if(this.filter != null)
+			this.filter.printStats();
+		if(this.config.incompressibleCompression != null)
+			System.err.println("Incompressible chunks: " + this.incompressibleChunks + " with " + this.incompressibleBytes + " bytes stored with " + this.config.incompressibleCompression);
+
+		this.saveBundle(this.currentBundle, this.config.bundleCompressionMethod, true);
+		this.currentBundle = null;
+		this.saveBundle(this.currentRawBundle, this.config.incompressibleCompression, false);
+		this.currentRawBundle = null;
 		this.executor.shutdown();
 		while(!this.executor.isTerminated()) {
 			try {
@@ -203,7 +534,35 @@ public class ZbackupStore implements Store {
 
 		if(!indexBundles.isEmpty()) {
 			final byte[] iID = this.generateBundleId();
-			IndexFile.writeIndex(this.store.resolve("index").resolve(ZbackupStore.bundleString(iID)), indexBundles);
+			final Path indexPath = this.store.resolve("index").resolve(ZbackupStore.bundleString(iID));
+			IndexFile.writeIndex(indexPath, indexBundles);
+
+			if(this.snapshotPath != null) {
+				this.snapshotFiles.put(indexPath.getFileName().toString(), Files.size(indexPath));
+				this.writeSnapshot(indexBundles);
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot of the index with the chunks of the backup, which got no bundle number when they were
+	 * added to the cache.
+	 */
+	private void writeSnapshot(final Map<byte[], BundleInfo> newBundles) {
+		final long start = System.nanoTime();
+		final ByteBufferIndexCache cache = (ByteBufferIndexCache)this.indexCache;
+		for (final Entry<byte[], BundleInfo> bundle : newBundles.entrySet()) {
+			final int number = this.bundleRegistry.register(bundle.getKey()).getNumber();
+			for (final ChunkRecord record : bundle.getValue().getChunkRecordList()) {
+				cache.setBundle(new ChunkID(record.getId(), record.getSize()), number);
+			}
+		}
+
+		try {
+			IndexSnapshot.write(this.snapshotPath, cache, this.filter, this.snapshotFiles);
+			System.err.println("Index snapshot written in " + Duration.ofNanos(System.nanoTime() - start));
+		} catch (final IOException e) {
+			System.err.println("Can't write index snapshot: " + e);
 		}
 	}
 
@@ -250,15 +609,43 @@ public class ZbackupStore implements Store {
 
 
 
-	private void saveBundle() {
-		if(this.currentBundle == null)
-			return;
+	private static long littleEndianLong(final byte[] arr, final int offset) {
+		return ((((long)arr[offset + 7]       ) << 56) |
+				(((long)arr[offset + 6] & 0xff) << 48) |
+				(((long)arr[offset + 5] & 0xff) << 40) |
+				(((long)arr[offset + 4] & 0xff) << 32) |
+				(((long)arr[offset + 3] & 0xff) << 24) |
+				(((long)arr[offset + 2] & 0xff) << 16) |
+				(((long)arr[offset + 1] & 0xff) <<  8) |
+				(((long)arr[offset + 0] & 0xff)      ));
+	}
 
-		final Bundle workbundle = this.currentBundle;
-		this.currentBundle = null;
+	/**
+	 * @param adaptive if the controller, if any, picks the compressor and level
+	 */
+	private void saveBundle(final Bundle workbundle, final String compressor, final boolean adaptive) {
+		if(workbundle == null)
+			return;
 
+		final int busy = Runtime.getRuntime().availableProcessors() - this.bundleWriterSem.availablePermits();
+		long waited = 0;
 		// we block here so not to much Bundles get created
-		this.bundleWriterSem.acquireUninterruptibly();
+		if(!this.bundleWriterSem.tryAcquire()) {
+			final long start = System.nanoTime();
+			this.bundleWriterSem.acquireUninterruptibly();
+			waited = Math.max(1, System.nanoTime() - start);
+		}
+
+		final String method;
+		final int level;
+		if(adaptive && this.controller != null) {
+			this.controller.next(busy, waited);
+			method = this.controller.getCompressor();
+			level = this.controller.getLevel();
+		} else {
+			method = compressor;
+			level = this.config.compressionLevel;
+		}
 
 		final Runnable run = () -> {
 			OutputStream stream;
@@ -275,8 +662,12 @@ public class ZbackupStore implements Store {
 						e.printStackTrace();
 					}
 				}
-				final BundleInfo bInfo = workbundle.writeTo(stream, this.config.bundleCompressionMethod, this.config.compressionLevel, this.config.erasureLevel);
+				final int size = workbundle.getPayloadSize();
+				final long start = System.nanoTime();
+				final BundleInfo bInfo = workbundle.writeTo(stream, method, level, this.config.erasureLevel, this.config.blockSize, this.executor, this.config.compressionThreads);
 				stream.close();
+				if(adaptive && this.controller != null)
+					this.controller.compressed(method, level, size, System.nanoTime() - start);
 
 				synchronized (this.newBundles) {
 					this.newBundles.put(tmpPath, bInfo);
@@ -333,11 +724,32 @@ public class ZbackupStore implements Store {
 
 	private static final class Config {
 		int chunkMaxSize = 1 << 16;
+		/** 0 derives the size from chunkMaxSize */
+		int chunkAvgSize = 0;
+		int chunkMinSize = 0;
+		String chunker = "rolling";
 		int bundleMaxPayload = 1 << 21;
 		String bundleCompressionMethod = "lzma";
 		int compressionLevel = 6;
 		int erasureLevel = 0;
+		/** repeated chunks are written as one instruction with a count */
+		boolean chunkRepeat = false;
+		/** 0 compresses a bundle as one stream */
+		int blockSize = 0;
+		/** the number of blocks of one bundle compressed at once */
+		int compressionThreads = 1;
+		/** the compressor of the bundles with incompressible chunks, null doesn't probe the chunks */
+		String incompressibleCompression = null;
+		/** on, off or the compressor to use when lzma 0 is too slow */
+		String adaptiveCompression = "off";
+		/** bytes per second the adaptive compression should keep up with, 0 only watches the queue */
+		int compressionTarget = 0;
 		int chunksInCache = 16;
+		String indexCache = "bytebuffer";
+		boolean indexSnapshot = true;
+		int indexThreads = Runtime.getRuntime().availableProcessors();
+		/** -1 sizes the filter by the chunk count up to the cache size, 0 disables it */
+		int filterSize = 0;
 	}
 
 	@Override
@@ -345,8 +757,27 @@ public class ZbackupStore implements Store {
 		return this.config.chunkMaxSize;
 	}
 
+	@Override
+	public Chunker newChunker() {
+		switch (this.config.chunker) {
+		case "rolling":
+			return null;
+		case "gear":
+			final int avgSize = this.config.chunkAvgSize > 0 ? this.config.chunkAvgSize : this.config.chunkMaxSize / 8;
+			final int minSize = this.config.chunkMinSize > 0 ? this.config.chunkMinSize : Math.max(BackupCreator.MIN_CHUNK_SIZE, avgSize / 4);
+			return new GearChunker(minSize, avgSize, this.config.chunkMaxSize);
+		default:
+			throw new IllegalArgumentException("Unknown chunker " + this.config.chunker);
+		}
+	}
+
 	@Override
 	public int getMaxChunksInCache() {
 		return this.config.chunksInCache;
 	}
+
+	@Override
+	public boolean isChunkRepeatEnabled() {
+		return this.config.chunkRepeat;
+	}
 }
@@ -0,0 +1,37 @@
+#!/bin/bash
+# Checks the lzo1x_1 bundles against a real zbackup in both directions:
+# a backup zbackup wrote with lzo is restored by jbackup and a backup jbackup wrote with lzo1x_1 is restored by zbackup.
+#
+# usage: verify-lzo.sh [input file]
+# needs zbackup in the PATH and the jar of mvn package, ZBACKUP_LZO overrides how zbackup is told to use lzo
+# jbackup only writes lzo1x_1 bundles with -Djbackup.unverified-lzo=true until this passes
+
+set -e
+
+ROOTPATH="$(dirname "$(readlink -f "${0}")")"
+JAR="${JAR:-${ROOTPATH}/target/jbackup-0.0.1-SNAPSHOT-jar-with-dependencies.jar}"
+ZBACKUP_LZO="${ZBACKUP_LZO:---compression lzo}"
+
+WORK="$(mktemp -d)"
+trap 'rm -rf "${WORK}"' EXIT
+
+INPUT="${1:-${WORK}/input}"
+if [ -z "${1}" ]; then
+	# compressible text with some random data in between
+	for i in $(seq 1 200); do
+		seq "${i}" 7 100000
+		head -c 10000 /dev/urandom
+	done > "${INPUT}"
+fi
+
+zbackup init --non-encrypted "${WORK}/zstore"
+zbackup --non-encrypted ${ZBACKUP_LZO} backup "${WORK}/zstore/backups/lzo" < "${INPUT}"
+java -jar "${JAR}" restore "${WORK}/zstore/backups/lzo" > "${WORK}/restored-by-jbackup"
+cmp "${INPUT}" "${WORK}/restored-by-jbackup"
+echo "zbackup lzo backup restored by jbackup"
+
+zbackup init --non-encrypted "${WORK}/jstore"
+java -Djbackup.unverified-lzo=true -jar "${JAR}" -o compression=lzo1x_1 backup "${WORK}/jstore/backups/lzo" < "${INPUT}"
+zbackup --non-encrypted restore "${WORK}/jstore/backups/lzo" > "${WORK}/restored-by-zbackup"
+cmp "${INPUT}" "${WORK}/restored-by-zbackup"
+echo "jbackup lzo1x_1 backup restored by zbackup"